@@ -39,6 +39,8 @@ public class CheckIn {
 
   private Date checkinDate;
 
+  private Long visitDurationInSeconds;
+
   public Key getKey() {
     return key;
   }
@@ -47,6 +49,10 @@ public class CheckIn {
     key = null;
   }
 
+  void setKey(Key key) {
+    this.key = key;
+  }
+
   public String getPlaceId() {
     return placeId;
   }
@@ -70,4 +76,16 @@ public class CheckIn {
   public void setCheckinDate(Date date) {
     checkinDate = date;
   }
+
+  /**
+   * @return how long the user stayed at the place, for check-ins detected from location reports
+   *     once the user has left; null otherwise.
+   */
+  public Long getVisitDurationInSeconds() {
+    return visitDurationInSeconds;
+  }
+
+  public void setVisitDurationInSeconds(Long visitDurationInSeconds) {
+    this.visitDurationInSeconds = visitDurationInSeconds;
+  }
 }
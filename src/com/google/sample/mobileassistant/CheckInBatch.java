@@ -0,0 +1,44 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.mobileassistant;
+
+import java.util.List;
+
+/**
+ * Batch check-in request and response. The request sets the check-ins, and the response holds
+ * one result per check-in, in the same order.
+ */
+public class CheckInBatch {
+
+  private List<CheckIn> checkIns;
+
+  private List<CheckInResult> results;
+
+  public List<CheckIn> getCheckIns() {
+    return checkIns;
+  }
+
+  public void setCheckIns(List<CheckIn> checkIns) {
+    this.checkIns = checkIns;
+  }
+
+  public List<CheckInResult> getResults() {
+    return results;
+  }
+
+  public void setResults(List<CheckInResult> results) {
+    this.results = results;
+  }
+}
@@ -13,16 +13,16 @@
  */
 package com.google.sample.mobileassistant;
 
-import static com.google.appengine.api.taskqueue.TaskOptions.Builder.withUrl;
-
 import com.google.api.server.spi.ServiceException;
 import com.google.api.server.spi.config.Api;
+import com.google.api.server.spi.config.ApiMethod;
 import com.google.api.server.spi.config.ApiNamespace;
-import com.google.appengine.api.taskqueue.Queue;
-import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.api.server.spi.response.BadRequestException;
 import com.google.appengine.api.users.User;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
 import java.util.logging.Logger;
@@ -41,6 +41,11 @@ import javax.persistence.Query;
     audiences = {ApiKeysAndIds.AUDIENCE_ID})
 public class CheckInEndpoint {
   private static final Logger log = Logger.getLogger(CheckInEndpoint.class.getName());
+  private static final int MAX_LOCATION_REPORTS = 500;
+  // The maximum number of tasks a single Queue.add call can take.
+  private static final int MAX_BATCH_CHECK_INS = 100;
+  // How far back a batch may date its check-ins.
+  private static final long MAX_CHECK_IN_AGE_IN_MILLIS = 24 * 60 * 60 * 1000L;
 
   /**
    * This method lists all the entities inserted in datastore. It uses HTTP GET method.
@@ -86,6 +91,10 @@ public class CheckInEndpoint {
   /**
    * This inserts the entity into App Engine datastore. It uses HTTP POST method.
    *
+   * <p>In write-behind mode, the entity is only added to a pull queue and is stored later by
+   * {@link CheckInWriteBehind}. It is returned with the key it will be stored with, which
+   * {@link #get} finds once it has been stored.
+   *
    * @param checkin the entity to be inserted.
    * @return The inserted entity.
    */
@@ -98,20 +107,149 @@ public class CheckInEndpoint {
     // Do not use the key provided by the caller; use a generated key.
     checkin.clearKey();
 
-    EntityManager mgr = getEntityManager();
-    try {
-      mgr.persist(checkin);
-    } finally {
-      mgr.close();
+    if (CheckInWriteBehind.ENABLED) {
+      // Stored and followed by personalized offers within about a minute.
+      CheckInWriteBehind.enqueue(checkin);
+      return checkin;
     }
 
+    CheckInUtil.insertCheckIn(checkin);
+
     // generate personalized offers when user checks into a place and send them
     // to the user using push notification
-    pushPersonalizedOffers(checkin.getPlaceId(), user);
+    pushPersonalizedOffers(checkin);
 
     return checkin;
   }
 
+  /**
+   * This inserts several entities into App Engine datastore at once, such as check-ins queued by
+   * a client while it was offline. It uses HTTP POST method.
+   *
+   * <p>Check-ins keep the date at which they were made, unless it is missing or in the future;
+   * dates more than a day old are moved forward to a day ago. They are stored with a single
+   * datastore call, and the tasks that push personalized offers are added with a single task
+   * queue call, only for check-ins recent enough that the offers would not have expired. A
+   * client therefore cannot get offers by replaying check-ins with other dates.
+   *
+   * @param batch the check-ins, up to 100 of them.
+   * @return The batch with a result per check-in, in the order of the check-ins.
+   */
+  @ApiMethod(httpMethod = "POST", path = "checkin/batch")
+  public CheckInBatch insertBatch(CheckInBatch batch, User user) throws ServiceException {
+    EndpointUtil.throwIfNotAuthenticated(user);
+
+    List<CheckIn> checkins = batch.getCheckIns();
+    if (checkins == null || checkins.isEmpty() || checkins.size() > MAX_BATCH_CHECK_INS) {
+      throw new BadRequestException(
+          "A batch must have between 1 and " + MAX_BATCH_CHECK_INS + " check-ins");
+    }
+
+    Date now = new Date();
+    Date earliest = new Date(now.getTime() - MAX_CHECK_IN_AGE_IN_MILLIS);
+    List<CheckInResult> results = new ArrayList<CheckInResult>();
+    List<CheckIn> valid = new ArrayList<CheckIn>();
+    for (CheckIn checkin : checkins) {
+      if (checkin == null || checkin.getPlaceId() == null || checkin.getPlaceId().isEmpty()) {
+        results.add(new CheckInResult(CheckInResult.STATUS_INVALID, "Missing placeId", null));
+        continue;
+      }
+      checkin.setUserEmail(user.getEmail());
+      if (checkin.getCheckinDate() == null || checkin.getCheckinDate().after(now)) {
+        checkin.setCheckinDate(now);
+      } else if (checkin.getCheckinDate().before(earliest)) {
+        checkin.setCheckinDate(earliest);
+      }
+      checkin.setVisitDurationInSeconds(null);
+
+      // Do not use the key provided by the caller; use a generated key.
+      checkin.clearKey();
+
+      valid.add(checkin);
+      results.add(new CheckInResult(CheckInResult.STATUS_OK, null, checkin));
+    }
+
+    if (!valid.isEmpty()) {
+      CheckInUtil.insertCheckIns(valid);
+
+      List<CheckIn> current = new ArrayList<CheckIn>();
+      for (CheckIn checkin : valid) {
+        if (RecommendationServlet.isCurrent(checkin.getCheckinDate(), now)) {
+          current.add(checkin);
+        }
+      }
+      try {
+        if (!current.isEmpty()) {
+          RecommendationServlet.addTasks(current);
+        }
+      } catch (RuntimeException e) {
+        log.severe(e.getMessage());
+      }
+    }
+
+    CheckInBatch response = new CheckInBatch();
+    response.setResults(results);
+    return response;
+  }
+
+  /**
+   * This method reports positions of the user's device, which may check the user into or out of
+   * places. It uses HTTP POST method.
+   *
+   * @param batch the positions, up to 500 of them.
+   * @return The checkins created for places the user entered, and the checkins of places the
+   *     user left, with the visit duration.
+   */
+  @ApiMethod(httpMethod = "POST", path = "checkin/locations")
+  public List<CheckIn> reportLocations(LocationReportBatch batch, User user)
+      throws ServiceException {
+    EndpointUtil.throwIfNotAuthenticated(user);
+
+    List<LocationReport> reports = batch.getReports();
+    if (reports == null || reports.isEmpty() || reports.size() > MAX_LOCATION_REPORTS) {
+      throw new BadRequestException(
+          "A batch must have between 1 and " + MAX_LOCATION_REPORTS + " reports");
+    }
+
+    reports = new ArrayList<LocationReport>(reports);
+    Collections.sort(reports, new Comparator<LocationReport>() {
+      @Override
+      public int compare(LocationReport a, LocationReport b) {
+        return Long.compare(a.getTimeInMillis(), b.getTimeInMillis());
+      }
+    });
+
+    int size = reports.size();
+    double[] latitudes = new double[size];
+    double[] longitudes = new double[size];
+    double[] accuracies = new double[size];
+    long[] times = new long[size];
+    for (int i = 0; i < size; i++) {
+      LocationReport report = reports.get(i);
+      if (Double.isNaN(report.getLatitude()) || Math.abs(report.getLatitude()) > 90
+          || Double.isNaN(report.getLongitude()) || Math.abs(report.getLongitude()) > 180) {
+        throw new BadRequestException("Invalid pair of 'latitude' and 'longitude' arguments");
+      }
+      latitudes[i] = report.getLatitude();
+      longitudes[i] = report.getLongitude();
+      accuracies[i] = report.getAccuracyInMeters();
+      times[i] = report.getTimeInMillis();
+    }
+
+    List<CheckIn> checkins =
+        GeofenceEngine.report(user.getEmail(), latitudes, longitudes, accuracies, times);
+
+    Date now = new Date();
+    for (CheckIn checkin : checkins) {
+      if (checkin.getVisitDurationInSeconds() == null
+          && RecommendationServlet.isCurrent(checkin.getCheckinDate(), now)) {
+        pushPersonalizedOffers(checkin);
+      }
+    }
+
+    return checkins;
+  }
+
   /**
    * This method is used for updating a entity. It uses HTTP PUT method.
    *
@@ -152,15 +290,12 @@ public class CheckInEndpoint {
     return EMF.get().createEntityManager();
   }
 
-  private void pushPersonalizedOffers(String placeId, User user) {
+  private void pushPersonalizedOffers(CheckIn checkin) {
     // insert a task to a queue
     log.info("adding a task to recommendations-queue");
-    Queue queue = QueueFactory.getQueue("recommendations-queue");
 
     try {
-      String userEmail = user.getEmail();
-      queue.add(withUrl("/tasks/recommendations")
-          .param("userEmail", userEmail).param("placeId", placeId));
+      RecommendationServlet.addTasks(Collections.singletonList(checkin));
       log.info("task added");
     } catch (RuntimeException e) {
       log.severe(e.getMessage());
@@ -0,0 +1,72 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.mobileassistant;
+
+/**
+ * Outcome of one check-in of a batch check-in request.
+ */
+public class CheckInResult {
+  public static final String STATUS_OK = "OK";
+  public static final String STATUS_INVALID = "INVALID";
+
+  private String status;
+
+  private String message;
+
+  private CheckIn checkIn;
+
+  public CheckInResult() {
+  }
+
+  public CheckInResult(String status, String message, CheckIn checkIn) {
+    this.status = status;
+    this.message = message;
+    this.checkIn = checkIn;
+  }
+
+  /**
+   * @return {@link #STATUS_OK} if the check-in was stored, or {@link #STATUS_INVALID} if it was
+   *     rejected.
+   */
+  public String getStatus() {
+    return status;
+  }
+
+  public void setStatus(String status) {
+    this.status = status;
+  }
+
+  /**
+   * @return why the check-in was rejected, or null if it was stored.
+   */
+  public String getMessage() {
+    return message;
+  }
+
+  public void setMessage(String message) {
+    this.message = message;
+  }
+
+  /**
+   * @return the stored check-in with its key, or null if it was rejected.
+   */
+  public CheckIn getCheckIn() {
+    return checkIn;
+  }
+
+  public void setCheckIn(CheckIn checkIn) {
+    this.checkIn = checkIn;
+  }
+}
@@ -13,6 +13,10 @@
  */
 package com.google.sample.mobileassistant;
 
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
@@ -48,7 +52,6 @@ public class CheckInUtil {
           .setParameter("userEmail", userEmail).setParameter("placeId", placeId)
           .setParameter("checkindate", dateFrom);
       for (CheckIn checkIn : (List<CheckIn>) query.getResultList()) {
-        log.info(checkIn.getCheckinDate().toString());
         result.add(checkIn);
       }
     } finally {
@@ -57,6 +60,70 @@ public class CheckInUtil {
     return result;
   }
 
+  /**
+   * Persists a new checkin and records it in {@link RecentVisits}.
+   *
+   * @param checkin The checkin to be persisted; its key is set by the datastore.
+   * @return The checkin with its key.
+   */
+  static CheckIn insertCheckIn(CheckIn checkin) {
+    EntityManager mgr = getEntityManager();
+    try {
+      mgr.persist(checkin);
+    } finally {
+      mgr.close();
+    }
+    RecentVisits.record(checkin);
+    return checkin;
+  }
+
+  /**
+   * Persists new checkins with a single datastore call. The entities are written with the
+   * low-level datastore API, which unlike JPA can put many of them at once, with the properties
+   * that JPA maps the CheckIn fields to. The checkins are then recorded in {@link RecentVisits}.
+   *
+   * @param checkins The checkins to be persisted; the keys of those without one are set by the
+   *     datastore, and those with one replace any entity with the same key.
+   */
+  static void insertCheckIns(List<CheckIn> checkins) {
+    List<Entity> entities = new ArrayList<Entity>(checkins.size());
+    for (CheckIn checkin : checkins) {
+      Entity entity = checkin.getKey() == null ? new Entity("CheckIn")
+          : new Entity(checkin.getKey());
+      entity.setProperty("placeId", checkin.getPlaceId());
+      entity.setProperty("userEmail", checkin.getUserEmail());
+      entity.setProperty("checkinDate", checkin.getCheckinDate());
+      entity.setProperty("visitDurationInSeconds", checkin.getVisitDurationInSeconds());
+      entities.add(entity);
+    }
+    List<Key> keys = DatastoreServiceFactory.getDatastoreService().put(entities);
+    for (int i = 0; i < checkins.size(); i++) {
+      checkins.get(i).setKey(keys.get(i));
+    }
+    RecentVisits.record(checkins);
+  }
+
+  /**
+   * Records the duration of the visit that started with a checkin.
+   *
+   * @param key The key of the checkin.
+   * @param durationInSeconds The duration of the visit.
+   * @return The updated checkin, or null if it no longer exists.
+   */
+  static CheckIn setVisitDuration(Key key, long durationInSeconds) {
+    EntityManager mgr = getEntityManager();
+    try {
+      CheckIn checkin = mgr.find(CheckIn.class, key);
+      if (checkin != null) {
+        checkin.setVisitDurationInSeconds(durationInSeconds);
+        mgr.persist(checkin);
+      }
+      return checkin;
+    } finally {
+      mgr.close();
+    }
+  }
+
   private static EntityManager getEntityManager() {
     return EMF.get().createEntityManager();
   }
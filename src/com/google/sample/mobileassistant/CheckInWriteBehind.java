@@ -0,0 +1,197 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.mobileassistant;
+
+import static com.google.appengine.api.taskqueue.TaskOptions.Builder.withMethod;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.KeyRange;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskHandle;
+import com.google.appengine.api.taskqueue.TaskOptions;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Write-behind storage of check-ins through a pull queue.
+ *
+ * <p>When enabled, {@link CheckInEndpoint#insert} only adds the check-in to {@link #QUEUE} and
+ * returns. A worker run by cron every minute leases the queued check-ins hundreds at a time,
+ * stores each lease with a single datastore put, adds the recommendation tasks with as few
+ * queue calls as possible, and only then deletes the leased tasks. A check-in gets a numeric
+ * id when it is queued, which its task carries, so that the caller gets the key the check-in
+ * will have and a lease that expires after a failed worker is stored again without duplicates.
+ * The ids are handed out from a block allocated by each instance {@link #ID_BLOCK_SIZE} at a
+ * time, so that queueing a check-in rarely waits for the datastore.
+ *
+ * <p>The lag between a check-in and its storage is added to {@link PlaceMetrics}, as a total
+ * and in a few buckets.
+ */
+class CheckInWriteBehind {
+  private static final Logger log = Logger.getLogger(CheckInWriteBehind.class.getName());
+
+  static final boolean ENABLED =
+      Boolean.parseBoolean(System.getProperty("mobileassistant.checkins.writeBehind", "false"));
+
+  static final String QUEUE = "checkins-pull-queue";
+  private static final String CHECK_IN_KIND = "CheckIn";
+
+  // The maximum number of entities a single datastore put can take.
+  private static final int LEASE_COUNT = 500;
+  private static final long LEASE_SECONDS = 120;
+
+  private static final long[] LAG_BUCKETS_IN_SECONDS = {10, 60, 300};
+
+  private static final long ID_BLOCK_SIZE = 1000;
+
+  // The ids of the current block not handed out yet, from nextId up to and including lastId.
+  private static long nextId;
+  private static long lastId = -1;
+
+  /**
+   * Gives a check-in its key and adds it to the pull queue, to be stored by
+   * {@link #drain(long)}.
+   */
+  static void enqueue(CheckIn checkin) {
+    Key key = KeyFactory.createKey(CHECK_IN_KIND, nextId());
+    QueueFactory.getQueue(QUEUE).add(withMethod(TaskOptions.Method.PULL)
+        .param("id", Long.toString(key.getId()))
+        .param("userEmail", checkin.getUserEmail())
+        .param("placeId", checkin.getPlaceId())
+        .param("checkinDate", Long.toString(checkin.getCheckinDate().getTime())));
+    checkin.setKey(key);
+  }
+
+  /**
+   * @return an id of the block of this instance, after allocating a new block if it is used up.
+   */
+  private static synchronized long nextId() {
+    if (nextId > lastId) {
+      KeyRange block = DatastoreServiceFactory.getDatastoreService().allocateIds(
+          CHECK_IN_KIND, ID_BLOCK_SIZE);
+      nextId = block.getStart().getId();
+      lastId = block.getEnd().getId();
+    }
+    return nextId++;
+  }
+
+  /**
+   * Stores the queued check-ins until the queue is empty or a deadline has passed.
+   *
+   * @param deadline the time in milliseconds since the epoch after which no more check-ins are
+   *     leased.
+   * @return the number of check-ins stored.
+   */
+  static int drain(long deadline) {
+    Queue queue = QueueFactory.getQueue(QUEUE);
+    int stored = 0;
+    while (System.currentTimeMillis() < deadline) {
+      List<TaskHandle> tasks = queue.leaseTasks(LEASE_SECONDS, TimeUnit.SECONDS, LEASE_COUNT);
+      if (tasks.isEmpty()) {
+        break;
+      }
+      stored += store(tasks);
+      queue.deleteTask(tasks);
+      if (tasks.size() < LEASE_COUNT) {
+        break;
+      }
+    }
+    return stored;
+  }
+
+  /**
+   * Stores the check-ins of leased tasks and adds their recommendation tasks.
+   *
+   * @return the number of check-ins stored.
+   */
+  private static int store(List<TaskHandle> tasks) {
+    List<CheckIn> checkins = new ArrayList<CheckIn>(tasks.size());
+    for (TaskHandle task : tasks) {
+      CheckIn checkin = toCheckIn(task);
+      if (checkin != null) {
+        checkins.add(checkin);
+      }
+    }
+    if (checkins.isEmpty()) {
+      return 0;
+    }
+    CheckInUtil.insertCheckIns(checkins);
+
+    RecommendationServlet.addTasks(checkins);
+
+    recordLag(checkins);
+    return checkins.size();
+  }
+
+  private static void recordLag(List<CheckIn> checkins) {
+    long now = System.currentTimeMillis();
+    long totalLag = 0;
+    long maxLag = 0;
+    for (CheckIn checkin : checkins) {
+      long lag = Math.max(0, now - checkin.getCheckinDate().getTime());
+      totalLag += lag;
+      maxLag = Math.max(maxLag, lag);
+      int bucket = 0;
+      while (bucket < LAG_BUCKETS_IN_SECONDS.length
+          && lag > LAG_BUCKETS_IN_SECONDS[bucket] * 1000) {
+        bucket++;
+      }
+      PlaceMetrics.add(bucket < LAG_BUCKETS_IN_SECONDS.length
+          ? "checkins.writeBehind.lagUpTo" + LAG_BUCKETS_IN_SECONDS[bucket] + "s"
+          : "checkins.writeBehind.lagOver"
+              + LAG_BUCKETS_IN_SECONDS[LAG_BUCKETS_IN_SECONDS.length - 1] + "s", 1);
+    }
+    PlaceMetrics.add("checkins.writeBehind.stored", checkins.size());
+    PlaceMetrics.add("checkins.writeBehind.lagMillis", totalLag);
+    log.info("Stored " + checkins.size() + " check-ins with an average lag of "
+        + totalLag / checkins.size() + " ms and a maximum lag of " + maxLag + " ms");
+  }
+
+  /**
+   * @return the check-in of a task, or null if the task is malformed.
+   */
+  private static CheckIn toCheckIn(TaskHandle task) {
+    Map<String, String> params = new HashMap<String, String>();
+    try {
+      for (Map.Entry<String, String> param : task.extractParams()) {
+        params.put(param.getKey(), param.getValue());
+      }
+      CheckIn checkin = new CheckIn();
+      String id = params.get("id");
+      // Tasks queued before ids were allocated are keyed by their name.
+      checkin.setKey(id != null ? KeyFactory.createKey(CHECK_IN_KIND, Long.parseLong(id))
+          : KeyFactory.createKey(CHECK_IN_KIND, task.getName()));
+      checkin.setUserEmail(params.get("userEmail"));
+      checkin.setPlaceId(params.get("placeId"));
+      checkin.setCheckinDate(new Date(Long.parseLong(params.get("checkinDate"))));
+      return checkin;
+    } catch (UnsupportedEncodingException e) {
+      log.warning("Skipping malformed check-in task " + task.getName() + ": " + e.getMessage());
+    } catch (NumberFormatException e) {
+      log.warning("Skipping malformed check-in task " + task.getName() + ": " + e.getMessage());
+    }
+    return null;
+  }
+}
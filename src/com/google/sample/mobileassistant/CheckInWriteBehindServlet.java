@@ -0,0 +1,43 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.mobileassistant;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * HttpServlet run by cron to store the check-ins queued in write-behind mode.
+ *
+ * @see CheckInWriteBehind
+ */
+public class CheckInWriteBehindServlet extends HttpServlet {
+  private static final long serialVersionUID = 1L;
+
+  // Cron starts a run every minute, which picks up where the previous one stopped.
+  private static final long RUN_TIME_LIMIT_IN_MILLIS = 50 * 1000;
+
+  @Override
+  public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    long start = System.currentTimeMillis();
+    int stored = CheckInWriteBehind.drain(start + RUN_TIME_LIMIT_IN_MILLIS);
+
+    resp.setContentType("text/plain");
+    resp.getWriter().println("Stored " + stored + " check-ins in "
+        + (System.currentTimeMillis() - start) + " ms");
+  }
+}
@@ -0,0 +1,479 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.mobileassistant;
+
+import com.google.appengine.api.datastore.GeoPt;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact, read-only store of Places with a KD-tree for geo-proximity queries.
+ *
+ * <p>Everything lives in a single (optionally direct, i.e. off-heap) ByteBuffer:
+ * <ul>
+ * <li>a header: magic number, format version, number of places, size of the string table,</li>
+ * <li>per place, the coordinates of its point on the unit sphere and its latitude and longitude,
+ * all as floats,</li>
+ * <li>per place, the offsets of its id, name and address in the string table,</li>
+ * <li>the string table with all ids, names and addresses encoded in UTF-8.</li>
+ * </ul>
+ * The places are stored in the order of an implicit balanced KD-tree over the unit-sphere
+ * coordinates: the root of the range [lo, hi) is at (lo + hi) / 2 and splits on axis
+ * depth % 3. Straight-line (chord) distance between points on the unit sphere grows
+ * monotonically with great-circle distance, so the tree is pruned exactly.
+ *
+ * <p>Each place takes 32 bytes plus its UTF-8 strings, e.g. about 110 bytes for a typical id,
+ * name and address of 80 characters in total. That is roughly 110 MB for 1M places and 1.1 GB
+ * for 10M places, compared to several hundred bytes per place for Place objects with a GeoPt
+ * and three Strings. These are estimates from the layout, not measurements.
+ *
+ * <p>Queries only read the buffer and write into a caller-supplied {@link Neighbors} buffer, so
+ * a lookup allocates nothing until the matching places are decoded.
+ */
+class CompactPlaceStore implements PlaceSpatialIndex {
+  private static final int MAGIC = 0x504c4b44; // "PLKD"
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 16;
+  private static final int POINT_SIZE = 5 * 4;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final ThreadLocal<Neighbors> neighbors = new ThreadLocal<Neighbors>() {
+    @Override
+    protected Neighbors initialValue() {
+      return new Neighbors();
+    }
+  };
+
+  private final ByteBuffer buffer;
+  private final int size;
+  private final int offsetsPosition;
+  private final int stringsPosition;
+
+  /**
+   * Bounded buffer of the places closest to a query point, kept as a max-heap on distance while
+   * searching and sorted closest first afterwards. Instances are reusable across queries.
+   */
+  static class Neighbors {
+    private int[] places = new int[16];
+    private double[] chordsSquared = new double[16];
+    private int capacity;
+    private int count;
+    private double maxChordSquared;
+    private CompactPlaceStore store;
+
+    void reset(int capacity, double maxChordSquared, CompactPlaceStore store) {
+      if (places.length < capacity) {
+        places = new int[capacity];
+        chordsSquared = new double[capacity];
+      }
+      this.capacity = capacity;
+      this.count = 0;
+      this.maxChordSquared = maxChordSquared;
+      this.store = store;
+    }
+
+    int size() {
+      return count;
+    }
+
+    int getPlace(int i) {
+      return places[i];
+    }
+
+    double getDistanceInKm(int i) {
+      return toKilometers(chordsSquared[i]);
+    }
+
+    /**
+     * @return the squared chord distance a place has to beat to be added.
+     */
+    double bound() {
+      return count < capacity ? maxChordSquared : chordsSquared[0];
+    }
+
+    void offer(int place, double chordSquared) {
+      if (count < capacity) {
+        int i = count++;
+        places[i] = place;
+        chordsSquared[i] = chordSquared;
+        siftUp(i);
+      } else if (compare(place, chordSquared, places[0], chordsSquared[0]) < 0) {
+        places[0] = place;
+        chordsSquared[0] = chordSquared;
+        siftDown(0, count);
+      }
+    }
+
+    /**
+     * Turns the heap into a list sorted by ascending distance.
+     */
+    void sort() {
+      for (int end = count - 1; end > 0; end--) {
+        swap(0, end);
+        siftDown(0, end);
+      }
+    }
+
+    private void siftUp(int i) {
+      while (i > 0) {
+        int parent = (i - 1) / 2;
+        if (compare(places[parent], chordsSquared[parent], places[i], chordsSquared[i]) >= 0) {
+          return;
+        }
+        swap(parent, i);
+        i = parent;
+      }
+    }
+
+    private void siftDown(int i, int end) {
+      while (true) {
+        int largest = i;
+        int left = 2 * i + 1;
+        int right = left + 1;
+        if (left < end && compare(places[left], chordsSquared[left], places[largest],
+            chordsSquared[largest]) > 0) {
+          largest = left;
+        }
+        if (right < end && compare(places[right], chordsSquared[right], places[largest],
+            chordsSquared[largest]) > 0) {
+          largest = right;
+        }
+        if (largest == i) {
+          return;
+        }
+        swap(i, largest);
+        i = largest;
+      }
+    }
+
+    /**
+     * Orders by distance and then by place id, which is only decoded for equal distances.
+     */
+    private int compare(int place1, double chordSquared1, int place2, double chordSquared2) {
+      int result = Double.compare(chordSquared1, chordSquared2);
+      if (result == 0 && place1 != place2) {
+        result = store.compareIds(place1, place2);
+      }
+      return result;
+    }
+
+    private void swap(int i, int j) {
+      int place = places[i];
+      places[i] = places[j];
+      places[j] = place;
+      double chordSquared = chordsSquared[i];
+      chordsSquared[i] = chordsSquared[j];
+      chordsSquared[j] = chordSquared;
+    }
+  }
+
+  private CompactPlaceStore(ByteBuffer buffer) {
+    this.buffer = buffer;
+    if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+      throw new IllegalArgumentException("Not a compact place store");
+    }
+    this.size = buffer.getInt(8);
+    this.offsetsPosition = HEADER_SIZE + size * POINT_SIZE;
+    this.stringsPosition = offsetsPosition + (3 * size + 1) * 4;
+  }
+
+  /**
+   * Opens a store previously laid out in a buffer, e.g. one returned by {@link #getBuffer()}.
+   *
+   * @throws IllegalArgumentException if the buffer does not hold a store.
+   */
+  static CompactPlaceStore wrap(ByteBuffer buffer) {
+    return new CompactPlaceStore(buffer);
+  }
+
+  /**
+   * Builds a store over the given places.
+   *
+   * @param places the places to be stored. Places without a location are skipped.
+   * @param offHeap whether to allocate the store outside of the Java heap.
+   * @return the store.
+   */
+  static CompactPlaceStore build(List<? extends Place> places, boolean offHeap) {
+    List<Place> located = new ArrayList<Place>(places.size());
+    for (Place place : places) {
+      if (place.getLocation() != null) {
+        located.add(place);
+      }
+    }
+
+    int size = located.size();
+    double[][] points = new double[3][size];
+    int[] order = new int[size];
+    for (int i = 0; i < size; i++) {
+      GeoPt location = located.get(i).getLocation();
+      double lat = Math.toRadians(location.getLatitude());
+      double lon = Math.toRadians(location.getLongitude());
+      points[0][i] = Math.cos(lat) * Math.cos(lon);
+      points[1][i] = Math.cos(lat) * Math.sin(lon);
+      points[2][i] = Math.sin(lat);
+      order[i] = i;
+    }
+    arrangeTree(points, order, 0, size, 0);
+
+    byte[][] strings = new byte[3 * size][];
+    int stringBytes = 0;
+    for (int i = 0; i < size; i++) {
+      Place place = located.get(order[i]);
+      strings[3 * i] = encode(place.getPlaceId());
+      strings[3 * i + 1] = encode(place.getName());
+      strings[3 * i + 2] = encode(place.getAddress());
+      stringBytes += strings[3 * i].length + strings[3 * i + 1].length
+          + strings[3 * i + 2].length;
+    }
+
+    int capacity = HEADER_SIZE + size * POINT_SIZE + (3 * size + 1) * 4 + stringBytes;
+    ByteBuffer buffer =
+        offHeap ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    buffer.putInt(MAGIC).putInt(VERSION).putInt(size).putInt(stringBytes);
+    for (int i = 0; i < size; i++) {
+      int p = order[i];
+      GeoPt location = located.get(p).getLocation();
+      buffer.putFloat((float) points[0][p]).putFloat((float) points[1][p])
+          .putFloat((float) points[2][p])
+          .putFloat(location.getLatitude()).putFloat(location.getLongitude());
+    }
+    int offset = 0;
+    for (byte[] string : strings) {
+      buffer.putInt(offset);
+      offset += string.length;
+    }
+    buffer.putInt(offset);
+    for (byte[] string : strings) {
+      buffer.put(string);
+    }
+    buffer.flip();
+
+    return new CompactPlaceStore(buffer);
+  }
+
+  /**
+   * @return a read-only view of the buffer holding the whole store.
+   */
+  ByteBuffer getBuffer() {
+    ByteBuffer view = buffer.asReadOnlyBuffer();
+    view.clear();
+    return view;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public List<PlaceInfo> getPlaces(GeoPt location, long distanceInMeters, int resultCount) {
+    Neighbors result = neighbors.get();
+    findNearest(location.getLatitude(), location.getLongitude(), distanceInMeters / 1000.0,
+        resultCount, result);
+
+    List<PlaceInfo> places = new ArrayList<PlaceInfo>(result.size());
+    for (int i = 0; i < result.size(); i++) {
+      places.add(getPlaceInfo(result.getPlace(i), result.getDistanceInKm(i)));
+    }
+    return places;
+  }
+
+  @Override
+  public List<PlaceInfo> getPlacesAfter(GeoPt location, long distanceInMeters,
+      double afterDistanceInKm, String afterPlaceId, int resultCount) {
+    Neighbors result = neighbors.get();
+    findNearest(location.getLatitude(), location.getLongitude(), distanceInMeters / 1000.0,
+        afterDistanceInKm, afterPlaceId, resultCount, result);
+
+    List<PlaceInfo> places = new ArrayList<PlaceInfo>(result.size());
+    for (int i = 0; i < result.size(); i++) {
+      places.add(getPlaceInfo(result.getPlace(i), result.getDistanceInKm(i)));
+    }
+    return places;
+  }
+
+  /**
+   * Finds up to resultCount places within a given distance from a point, closest first.
+   *
+   * @param result receives the positions of the matching places in this store.
+   */
+  void findNearest(double latitude, double longitude, double distanceInKm, int resultCount,
+      Neighbors result) {
+    findNearest(latitude, longitude, distanceInKm, -1, null, resultCount, result);
+  }
+
+  /**
+   * Finds up to resultCount places within a given distance from a point that come after a given
+   * position in the order of distance and then place id, closest first.
+   *
+   * @param result receives the positions of the matching places in this store.
+   */
+  void findNearest(double latitude, double longitude, double distanceInKm,
+      double afterDistanceInKm, String afterPlaceId, int resultCount, Neighbors result) {
+    double lat = Math.toRadians(latitude);
+    double lon = Math.toRadians(longitude);
+    double angle = Math.min(Math.PI, distanceInKm / GeoDistance.EARTH_RADIUS_KM);
+    double chord = 2 * Math.sin(angle / 2);
+
+    result.reset(resultCount, chord * chord, this);
+    if (resultCount > 0) {
+      search(Math.cos(lat) * Math.cos(lon), Math.cos(lat) * Math.sin(lon), Math.sin(lat), 0,
+          size, 0, afterDistanceInKm, afterPlaceId, result);
+    }
+    result.sort();
+  }
+
+  private void search(double x, double y, double z, int lo, int hi, int axis,
+      double afterDistanceInKm, String afterPlaceId, Neighbors result) {
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      int position = HEADER_SIZE + mid * POINT_SIZE;
+      double dx = x - buffer.getFloat(position);
+      double dy = y - buffer.getFloat(position + 4);
+      double dz = z - buffer.getFloat(position + 8);
+      double chordSquared = dx * dx + dy * dy + dz * dz;
+      if (chordSquared <= result.bound()
+          && isAfter(mid, chordSquared, afterDistanceInKm, afterPlaceId)) {
+        result.offer(mid, chordSquared);
+      }
+
+      double split = axis == 0 ? dx : axis == 1 ? dy : dz;
+      int next = axis == 2 ? 0 : axis + 1;
+      // Search the side of the split holding the query point first, then continue with the
+      // other side only if it can still hold a closer place.
+      if (split < 0) {
+        search(x, y, z, lo, mid, next, afterDistanceInKm, afterPlaceId, result);
+        if (split * split > result.bound()) {
+          return;
+        }
+        lo = mid + 1;
+      } else {
+        search(x, y, z, mid + 1, hi, next, afterDistanceInKm, afterPlaceId, result);
+        if (split * split > result.bound()) {
+          return;
+        }
+        hi = mid;
+      }
+      axis = next;
+    }
+  }
+
+  private boolean isAfter(
+      int place, double chordSquared, double afterDistanceInKm, String afterPlaceId) {
+    if (afterDistanceInKm < 0) {
+      return true;
+    }
+    double distanceInKm = toKilometers(chordSquared);
+    if (distanceInKm != afterDistanceInKm) {
+      return distanceInKm > afterDistanceInKm;
+    }
+    String placeId = getString(3 * place);
+    return afterPlaceId == null || (placeId != null && placeId.compareTo(afterPlaceId) > 0);
+  }
+
+  private int compareIds(int place1, int place2) {
+    String placeId1 = getString(3 * place1);
+    String placeId2 = getString(3 * place2);
+    if (placeId1 == null || placeId2 == null) {
+      return Integer.compare(place1, place2);
+    }
+    return placeId1.compareTo(placeId2);
+  }
+
+  private static double toKilometers(double chordSquared) {
+    return 2 * GeoDistance.EARTH_RADIUS_KM * Math.asin(Math.min(1, Math.sqrt(chordSquared) / 2));
+  }
+
+  PlaceInfo getPlaceInfo(int place, double distanceInKm) {
+    int position = HEADER_SIZE + place * POINT_SIZE;
+    PlaceInfo info = new PlaceInfo();
+    info.setplaceID(getString(3 * place));
+    info.setName(getString(3 * place + 1));
+    info.setAddress(getString(3 * place + 2));
+    info.setLocation(
+        new GeoPt(buffer.getFloat(position + 12), buffer.getFloat(position + 16)));
+    info.setDistanceInKilometers(distanceInKm);
+    return info;
+  }
+
+  private String getString(int string) {
+    int start = buffer.getInt(offsetsPosition + 4 * string);
+    int end = buffer.getInt(offsetsPosition + 4 * string + 4);
+    if (start == end) {
+      return null;
+    }
+    byte[] bytes = new byte[end - start];
+    ByteBuffer view = buffer.duplicate();
+    view.position(stringsPosition + start);
+    view.get(bytes);
+    return new String(bytes, UTF8);
+  }
+
+  private static byte[] encode(String string) {
+    return string == null ? new byte[0] : string.getBytes(UTF8);
+  }
+
+  /**
+   * Reorders order[lo, hi) so that it forms an implicit KD-tree splitting on the given axis.
+   */
+  private static void arrangeTree(double[][] points, int[] order, int lo, int hi, int axis) {
+    while (hi - lo > 1) {
+      int mid = (lo + hi) >>> 1;
+      select(points[axis], order, lo, hi - 1, mid);
+      int next = axis == 2 ? 0 : axis + 1;
+      arrangeTree(points, order, lo, mid, next);
+      lo = mid + 1;
+      axis = next;
+    }
+  }
+
+  /**
+   * Partially sorts order[left, right] so that position k holds the element that would be there
+   * if the range were sorted by the given coordinate, with no larger elements before it and no
+   * smaller ones after it.
+   */
+  private static void select(double[] coordinates, int[] order, int left, int right, int k) {
+    while (left < right) {
+      double pivot = coordinates[order[(left + right) >>> 1]];
+      int i = left;
+      int j = right;
+      while (i <= j) {
+        while (coordinates[order[i]] < pivot) {
+          i++;
+        }
+        while (coordinates[order[j]] > pivot) {
+          j--;
+        }
+        if (i <= j) {
+          int swap = order[i];
+          order[i] = order[j];
+          order[j] = swap;
+          i++;
+          j--;
+        }
+      }
+      if (k <= j) {
+        right = j;
+      } else if (k >= i) {
+        left = i;
+      } else {
+        return;
+      }
+    }
+  }
+}
@@ -0,0 +1,102 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.mobileassistant;
+
+/**
+ * Great-circle distance functions.
+ *
+ * <p>The haversine formula is accurate at every scale, including for points that are very close
+ * to each other. The equirectangular approximation avoids all per-point trigonometry and is good
+ * enough for ranking places within a few kilometers of each other; its error grows with distance
+ * and latitude, so it should not be used above {@link #EQUIRECTANGULAR_MAX_DISTANCE_IN_KM}.
+ *
+ * <p>The batch methods work on primitive arrays with simple counted loops so that the JIT can
+ * unroll and, where the operations allow it, vectorize them.
+ */
+final class GeoDistance {
+  static final double EARTH_RADIUS_KM = 6371.0;
+  static final double KM_PER_DEGREE = Math.PI * EARTH_RADIUS_KM / 180;
+  static final double EQUIRECTANGULAR_MAX_DISTANCE_IN_KM = 10;
+
+  private GeoDistance() {}
+
+  /**
+   * @return the haversine distance in kilometers between two points given in degrees.
+   */
+  static double haversineKm(
+      double latitude1, double longitude1, double latitude2, double longitude2) {
+    double lat1 = Math.toRadians(latitude1);
+    double lat2 = Math.toRadians(latitude2);
+    double sinHalfLat = Math.sin((lat2 - lat1) / 2);
+    double sinHalfLong = Math.sin(Math.toRadians(longitude2 - longitude1) / 2);
+    double a = sinHalfLat * sinHalfLat
+        + Math.cos(lat1) * Math.cos(lat2) * sinHalfLong * sinHalfLong;
+    // rounding can push a slightly above 1 for antipodal points
+    return 2 * EARTH_RADIUS_KM * Math.asin(Math.sqrt(Math.min(1, a)));
+  }
+
+  /**
+   * @return the equirectangular approximation of the distance in kilometers between two points
+   *     given in degrees.
+   */
+  static double equirectangularKm(
+      double latitude1, double longitude1, double latitude2, double longitude2) {
+    double x = normalizeLongitudeDelta(longitude2 - longitude1)
+        * Math.cos(Math.toRadians((latitude1 + latitude2) / 2));
+    double y = latitude2 - latitude1;
+    return KM_PER_DEGREE * Math.sqrt(x * x + y * y);
+  }
+
+  /**
+   * Computes the haversine distances in kilometers from one point to the points at positions
+   * [from, to) of the given arrays.
+   *
+   * @param distances receives the distance of point from + k at position k.
+   */
+  static void haversineKm(double latitude, double longitude, double[] latitudes,
+      double[] longitudes, int from, int to, double[] distances) {
+    double lat = Math.toRadians(latitude);
+    double cosLat = Math.cos(lat);
+    for (int i = from; i < to; i++) {
+      double otherLat = Math.toRadians(latitudes[i]);
+      double sinHalfLat = Math.sin((otherLat - lat) / 2);
+      double sinHalfLong = Math.sin(Math.toRadians(longitudes[i] - longitude) / 2);
+      double a = sinHalfLat * sinHalfLat
+          + cosLat * Math.cos(otherLat) * sinHalfLong * sinHalfLong;
+      distances[i - from] = 2 * EARTH_RADIUS_KM * Math.asin(Math.sqrt(Math.min(1, a)));
+    }
+  }
+
+  /**
+   * Computes the equirectangular approximations of the distances in kilometers from one point to
+   * the points at positions [from, to) of the given arrays. The longitude scale is taken at the
+   * latitude of the first point, which keeps the loop free of trigonometry.
+   *
+   * @param distances receives the distance of point from + k at position k.
+   */
+  static void equirectangularKm(double latitude, double longitude, double[] latitudes,
+      double[] longitudes, int from, int to, double[] distances) {
+    double scale = Math.cos(Math.toRadians(latitude));
+    for (int i = from; i < to; i++) {
+      double x = normalizeLongitudeDelta(longitudes[i] - longitude) * scale;
+      double y = latitudes[i] - latitude;
+      distances[i - from] = KM_PER_DEGREE * Math.sqrt(x * x + y * y);
+    }
+  }
+
+  private static double normalizeLongitudeDelta(double delta) {
+    return delta - 360 * Math.rint(delta / 360);
+  }
+}
@@ -0,0 +1,339 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.mobileassistant;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.GeoPt;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.IdentifiableValue;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Detects visits to places from a stream of device positions and records them as CheckIns.
+ *
+ * <p>A device enters a place when it has stayed within {@link #ENTER_RADIUS_IN_METERS} of it,
+ * or at least within {@link #EXIT_RADIUS_IN_METERS}, for {@link #ENTER_DWELL_IN_MILLIS}; the
+ * CheckIn is then created with the time of the first position near the place. It leaves the
+ * place once it has been further than the larger exit radius for {@link #EXIT_DWELL_IN_MILLIS},
+ * and the visit duration is then recorded on the CheckIn. The two radii and the dwell times
+ * keep noisy positions at the edge of a place from producing a series of short visits.
+ *
+ * <p>The state of each device lives in memcache and is updated with compare-and-set, so that
+ * positions of the same device processed concurrently, possibly on different instances, never
+ * act on a stale state: one update wins and the others are retried on its result. The CheckIns
+ * of the transitions, and their keys, are only allocated and written once their state has been
+ * stored; the key of an open visit is then added to the state. A device whose state is evicted
+ * from memcache starts afresh, which may record an open visit twice.
+ *
+ * <p>Positions are dated by the device, so only those no later than the server time and no
+ * older than {@link #STATE_EXPIRATION_IN_MILLIS} are processed: a position dated in the future
+ * would otherwise hide all the following ones of the device.
+ *
+ * <p>Nearby places are looked up through {@link PlacesHelper#getPlaces(GeoPt, long, int)}, whose
+ * caches are scoped to the cell of the position, and only while the device is not near any
+ * place.
+ */
+class GeofenceEngine {
+  private static final Logger log = Logger.getLogger(GeofenceEngine.class.getName());
+
+  static final long ENTER_RADIUS_IN_METERS = 50;
+  static final long EXIT_RADIUS_IN_METERS = 100;
+  static final long ENTER_DWELL_IN_MILLIS = 60 * 1000;
+  static final long EXIT_DWELL_IN_MILLIS = 3 * 60 * 1000;
+
+  // Positions less accurate than this are ignored.
+  static final double MAX_ACCURACY_IN_METERS = 100;
+
+  // Devices that have not reported for this long are forgotten, and their open visits with
+  // them.
+  private static final long STATE_EXPIRATION_IN_MILLIS = 60 * 60 * 1000;
+  private static final int MAX_UPDATE_ATTEMPTS = 5;
+
+  private static final String MEMCACHE_KEY_PREFIX = "GeofenceEngine:";
+  private static final String CHECK_IN_KIND = "CheckIn";
+
+  private static final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+
+  /**
+   * The place a device is near, if any, and whether the visit has been confirmed.
+   */
+  static class DeviceState implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    String placeId;
+    double placeLatitude;
+    double placeLongitude;
+    boolean visiting;
+    long firstNearTime;
+    long lastNearTime;
+    long lastReportTime;
+    Key checkInKey;
+
+    boolean isVisit(CheckIn checkIn) {
+      return visiting && checkInKey == null && placeId != null
+          && placeId.equals(checkIn.getPlaceId())
+          && firstNearTime == checkIn.getCheckinDate().getTime();
+    }
+
+    void leave() {
+      placeId = null;
+      visiting = false;
+      checkInKey = null;
+    }
+  }
+
+  /**
+   * A CheckIn to be written once the state of its transition has been stored: either a new
+   * CheckIn for an entered place or the visit duration of the CheckIn of a left place. A place
+   * entered and left within the same positions refers to the CheckIn of its entry, whose key is
+   * not allocated yet.
+   */
+  private static class Transition {
+    CheckIn entered;
+    Key leftCheckInKey;
+    CheckIn leftCheckIn;
+    long durationInSeconds;
+  }
+
+  /**
+   * Processes the positions reported by a device, which must be in chronological order.
+   *
+   * @param userEmail the user of the device.
+   * @param latitudes the latitudes of the positions.
+   * @param longitudes the longitudes of the positions.
+   * @param accuracies the accuracy radius of each position in meters, or 0 if unknown.
+   * @param times the time of each position in milliseconds since the epoch.
+   * @return the CheckIns created for entered places and completed with the visit duration for
+   *     left places, in the order of the transitions.
+   */
+  static List<CheckIn> report(String userEmail, double[] latitudes, double[] longitudes,
+      double[] accuracies, long[] times) {
+    String key = MEMCACHE_KEY_PREFIX + userEmail;
+    Expiration expiration = Expiration.byDeltaMillis((int) STATE_EXPIRATION_IN_MILLIS);
+    long now = System.currentTimeMillis();
+    long earliest = now - STATE_EXPIRATION_IN_MILLIS;
+
+    // The places near each position, looked up once for all the attempts.
+    List<List<PlaceInfo>> nearest = new ArrayList<List<PlaceInfo>>(
+        Collections.<List<PlaceInfo>>nCopies(times.length, null));
+    for (int attempt = 1; attempt <= MAX_UPDATE_ATTEMPTS; attempt++) {
+      IdentifiableValue current = memcache.getIdentifiable(key);
+      DeviceState state = current == null ? new DeviceState() : (DeviceState) current.getValue();
+
+      List<Transition> transitions = new ArrayList<Transition>();
+      boolean changed = false;
+      for (int i = 0; i < times.length; i++) {
+        if (times[i] > now || times[i] < earliest || times[i] <= state.lastReportTime
+            || accuracies[i] > MAX_ACCURACY_IN_METERS) {
+          continue;
+        }
+        state.lastReportTime = times[i];
+        changed = true;
+        update(state, userEmail, latitudes[i], longitudes[i], times[i], nearest, i, transitions);
+      }
+      if (!changed) {
+        return new ArrayList<CheckIn>();
+      }
+
+      boolean stored = current == null
+          ? memcache.put(key, state, expiration, SetPolicy.ADD_ONLY_IF_NOT_PRESENT)
+          : memcache.putIfUntouched(key, current, state, expiration);
+      if (stored) {
+        allocateKeys(transitions);
+        recordCheckInKey(key, expiration, transitions);
+        return apply(transitions);
+      }
+    }
+    log.warning("Dropped positions of " + userEmail + " after " + MAX_UPDATE_ATTEMPTS
+        + " concurrent updates of the device state");
+    return new ArrayList<CheckIn>();
+  }
+
+  /**
+   * Applies one position to the state of a device.
+   *
+   * @param nearest the places near each position, filled in as they are looked up.
+   * @param index the index of the position in {@code nearest}.
+   * @param transitions receives the CheckIns to be written if the state is stored.
+   */
+  private static void update(DeviceState state, String userEmail, double latitude,
+      double longitude, long time, List<List<PlaceInfo>> nearest, int index,
+      List<Transition> transitions) {
+    if (state.placeId != null) {
+      double distanceInMeters = 1000 * GeoDistance.haversineKm(
+          latitude, longitude, state.placeLatitude, state.placeLongitude);
+      if (distanceInMeters <= EXIT_RADIUS_IN_METERS) {
+        state.lastNearTime = time;
+        if (!state.visiting && time - state.firstNearTime >= ENTER_DWELL_IN_MILLIS) {
+          enter(state, userEmail, transitions);
+        }
+        return;
+      }
+
+      if (state.visiting && time - state.lastNearTime < EXIT_DWELL_IN_MILLIS) {
+        // maybe just a stray position
+        return;
+      }
+      if (state.visiting) {
+        leave(state, transitions);
+      }
+      state.leave();
+    }
+
+    if (nearest.get(index) == null) {
+      nearest.set(index, PlacesHelper.getPlaces(
+          new GeoPt((float) latitude, (float) longitude), ENTER_RADIUS_IN_METERS, 1));
+    }
+    if (!nearest.get(index).isEmpty()) {
+      PlaceInfo place = nearest.get(index).get(0);
+      state.placeId = place.getPlaceId();
+      state.placeLatitude = place.getLocation().getLatitude();
+      state.placeLongitude = place.getLocation().getLongitude();
+      state.firstNearTime = time;
+      state.lastNearTime = time;
+    }
+  }
+
+  private static void enter(DeviceState state, String userEmail, List<Transition> transitions) {
+    state.visiting = true;
+
+    CheckIn checkIn = new CheckIn();
+    checkIn.setPlaceId(state.placeId);
+    checkIn.setUserEmail(userEmail);
+    checkIn.setCheckinDate(new Date(state.firstNearTime));
+
+    Transition transition = new Transition();
+    transition.entered = checkIn;
+    transitions.add(transition);
+  }
+
+  private static void leave(DeviceState state, List<Transition> transitions) {
+    CheckIn entered = null;
+    if (state.checkInKey == null) {
+      entered = getEntered(state, transitions);
+      if (entered == null) {
+        return;
+      }
+    }
+    Transition transition = new Transition();
+    transition.leftCheckInKey = state.checkInKey;
+    transition.leftCheckIn = entered;
+    transition.durationInSeconds = (state.lastNearTime - state.firstNearTime) / 1000;
+    transitions.add(transition);
+  }
+
+  /**
+   * Returns the CheckIn entered by the transitions for the current visit of a device, or null if
+   * the visit was entered by earlier positions.
+   */
+  private static CheckIn getEntered(DeviceState state, List<Transition> transitions) {
+    for (int i = transitions.size() - 1; i >= 0; i--) {
+      CheckIn entered = transitions.get(i).entered;
+      if (entered != null) {
+        return state.isVisit(entered) ? entered : null;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Allocates the keys of the CheckIns entered by stored transitions, in a single call.
+   */
+  private static void allocateKeys(List<Transition> transitions) {
+    int count = 0;
+    for (Transition transition : transitions) {
+      if (transition.entered != null) {
+        count++;
+      }
+    }
+    if (count == 0) {
+      return;
+    }
+    long id = DatastoreServiceFactory.getDatastoreService()
+        .allocateIds(CHECK_IN_KIND, count).getStart().getId();
+    for (Transition transition : transitions) {
+      if (transition.entered != null) {
+        transition.entered.setKey(KeyFactory.createKey(CHECK_IN_KIND, id++));
+      } else if (transition.leftCheckIn != null) {
+        transition.leftCheckInKey = transition.leftCheckIn.getKey();
+      }
+    }
+  }
+
+  /**
+   * Adds the key of the CheckIn of a visit entered by stored transitions, and still open, to the
+   * state of the device. The state is left alone if it has moved on in the meantime, in which
+   * case the visit duration is not recorded.
+   */
+  private static void recordCheckInKey(String key, Expiration expiration,
+      List<Transition> transitions) {
+    CheckIn entered = null;
+    for (Transition transition : transitions) {
+      if (transition.entered != null) {
+        entered = transition.entered;
+      }
+    }
+    if (entered == null) {
+      return;
+    }
+    for (int attempt = 1; attempt <= MAX_UPDATE_ATTEMPTS; attempt++) {
+      IdentifiableValue current = memcache.getIdentifiable(key);
+      if (current == null) {
+        return;
+      }
+      DeviceState state = (DeviceState) current.getValue();
+      if (!state.isVisit(entered)) {
+        return;
+      }
+      state.checkInKey = entered.getKey();
+      if (memcache.putIfUntouched(key, current, state, expiration)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Writes the CheckIns of stored transitions.
+   *
+   * @return the CheckIns, in the order of the transitions.
+   */
+  private static List<CheckIn> apply(List<Transition> transitions) {
+    List<CheckIn> checkIns = new ArrayList<CheckIn>();
+    for (Transition transition : transitions) {
+      if (transition.entered != null) {
+        CheckInUtil.insertCheckIns(Collections.singletonList(transition.entered));
+        checkIns.add(transition.entered);
+      } else {
+        CheckIn checkIn = CheckInUtil.setVisitDuration(
+            transition.leftCheckInKey, transition.durationInSeconds);
+        if (checkIn != null) {
+          checkIns.add(checkIn);
+        }
+      }
+    }
+    return checkIns;
+  }
+}
@@ -0,0 +1,365 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.mobileassistant;
+
+import com.google.appengine.api.datastore.GeoPt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+/**
+ * PlaceSearchBackend that answers queries in-process from a {@link PlaceSpatialIndex}: a
+ * {@link PlaceGridIndex} by default, or a {@link CompactPlaceStore} for large place sets. Text
+ * searches use a {@link PlaceTextIndex} over the same places.
+ *
+ * <p>Distances are real great-circle distances, so this backend also works on the development
+ * server, where the Search API does not support geo queries, and in load tests that should not
+ * depend on the network.
+ *
+ * <p>The indexes are loaded at warmup from the {@link PlaceSnapshot}, or from the Place entities
+ * if there is no snapshot yet, and replaced when a newer snapshot is written. Queries never
+ * read the Place entities once an instance has indexes: they keep being answered from the
+ * current ones while a newer snapshot is opened. Places put or removed through this instance
+ * are applied on top of the indexes by queries until a snapshot that includes them is opened.
+ */
+class InMemoryPlaceSearchBackend implements PlaceSearchBackend {
+  private static final Logger log = Logger.getLogger(InMemoryPlaceSearchBackend.class.getName());
+
+  // "grid" or "kdtree"
+  private static final String INDEX_TYPE =
+      System.getProperty("mobileassistant.places.memoryIndex", "grid");
+  private static final double CELL_SIZE_IN_DEGREES = Double.parseDouble(
+      System.getProperty("mobileassistant.places.gridCellSizeInDegrees", "0.05"));
+  // How often an instance looks for a newer snapshot.
+  private static final long REFRESH_INTERVAL_IN_MILLIS = 60 * 1000 * Long.parseLong(
+      System.getProperty("mobileassistant.places.gridRefreshIntervalInMinutes", "10"));
+  // Changes made this long before a snapshot started to read the places are assumed to be in it.
+  private static final long CHANGE_VISIBILITY_DELAY_IN_MILLIS = 60 * 1000;
+  // Queries apply every change, so more than this many are logged as a reason to write a
+  // snapshot.
+  private static final int MAX_CHANGES = 1000;
+
+  /**
+   * The indexes of one set of places, swapped in as a whole.
+   */
+  private static class Indexes {
+    final PlaceSpatialIndex spatial;
+    final PlaceTextIndex text;
+    // The version of the snapshot the places came from, or 0 if read from the datastore.
+    final long snapshotVersion;
+    // When the places started to be read.
+    final long loadTime;
+
+    Indexes(PlaceSpatialIndex spatial, PlaceTextIndex text, long snapshotVersion,
+        long loadTime) {
+      this.spatial = spatial;
+      this.text = text;
+      this.snapshotVersion = snapshotVersion;
+      this.loadTime = loadTime;
+    }
+  }
+
+  // Read without a lock by every query.
+  private volatile Indexes indexes;
+  private volatile long refreshCheckTime;
+  private final AtomicBoolean refreshing = new AtomicBoolean();
+
+  // Places put or removed through this instance, by place id. Copied on write and read without
+  // a lock.
+  private volatile Map<String, Change> changes = new HashMap<String, Change>();
+  private final Object changesLock = new Object();
+
+  /**
+   * A place put or removed.
+   */
+  private static class Change {
+    final long time;
+    final String placeId;
+    // null if the place was removed or has no location
+    final Place place;
+
+    Change(long time, String placeId, Place place) {
+      this.time = time;
+      this.placeId = placeId;
+      this.place = place;
+    }
+  }
+
+  @Override
+  public List<PlaceInfo> getPlaces(GeoPt location, long distanceInMeters, int resultCount) {
+    return getPlacesAfter(location, distanceInMeters, -1, null, resultCount);
+  }
+
+  @Override
+  public List<PlaceInfo> getPlacesAfter(GeoPt location, long distanceInMeters,
+      double afterDistanceInKm, String afterPlaceId, int resultCount) {
+    PlaceSpatialIndex current = getIndexes().spatial;
+    List<Change> pending = new ArrayList<Change>(changes.values());
+    // Each change can take the place of at most one result of the index.
+    int count = resultCount + pending.size();
+    List<PlaceInfo> found = afterDistanceInKm < 0
+        ? current.getPlaces(location, distanceInMeters, count)
+        : current.getPlacesAfter(location, distanceInMeters, afterDistanceInKm, afterPlaceId,
+            count);
+    return applyChanges(found, pending, null, location, distanceInMeters, afterDistanceInKm,
+        afterPlaceId, resultCount);
+  }
+
+  @Override
+  public long countPlaces(GeoPt location, long distanceInMeters) {
+    PlaceSpatialIndex current = getIndexes().spatial;
+    return getPlaces(location, distanceInMeters, current.size() + changes.size()).size();
+  }
+
+  /**
+   * @return whether the cost of a query grows with its radius rather than with its result count,
+   *     as for the grid that scans every cell within the radius.
+   */
+  boolean isCostProportionalToRadius() {
+    Indexes current = indexes;
+    return current != null ? !(current.spatial instanceof CompactPlaceStore)
+        : !"kdtree".equals(INDEX_TYPE);
+  }
+
+  @Override
+  public List<PlaceInfo> searchPlaces(
+      String text, GeoPt location, long distanceInMeters, int resultCount) {
+    PlaceTextIndex current = getIndexes().text;
+    List<Change> pending = new ArrayList<Change>(changes.values());
+    List<PlaceInfo> found = current.search(
+        text, location, distanceInMeters, resultCount + pending.size());
+    return applyChanges(found, pending, PlaceTextIndex.tokenize(text), location,
+        distanceInMeters, -1, null, resultCount);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>The places are applied on top of the current indexes by queries until a snapshot that
+   * includes them is opened.
+   */
+  @Override
+  public void putPlaces(List<Place> places) {
+    recordChanges(places, Collections.<String>emptyList());
+  }
+
+  @Override
+  public void removePlaces(List<String> placeIds) {
+    recordChanges(Collections.<Place>emptyList(), placeIds);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>The indexes are replaced by the next place snapshot, written hourly, so there is nothing
+   * to rebuild here.
+   */
+  @Override
+  public long beginRebuild() {
+    return 0;
+  }
+
+  @Override
+  public void putRebuiltPlaces(long version, List<Place> places) {
+  }
+
+  @Override
+  public void finishRebuild(long version) {
+  }
+
+  private void recordChanges(List<Place> putPlaces, List<String> removedPlaceIds) {
+    long now = System.currentTimeMillis();
+    synchronized (changesLock) {
+      Map<String, Change> updated = new HashMap<String, Change>(changes);
+      for (String placeId : removedPlaceIds) {
+        updated.put(placeId, new Change(now, placeId, null));
+      }
+      for (Place place : putPlaces) {
+        updated.put(place.getPlaceId(), new Change(now, place.getPlaceId(),
+            place.getLocation() != null ? place : null));
+      }
+      changes = updated;
+      if (updated.size() > MAX_CHANGES) {
+        log.warning(updated.size() + " changed places are applied to every query until the "
+            + "next place snapshot");
+      }
+    }
+  }
+
+  /**
+   * Forgets the changes that indexes loaded at the given time include.
+   */
+  private void pruneChanges(long loadTime) {
+    synchronized (changesLock) {
+      Map<String, Change> updated = new HashMap<String, Change>();
+      for (Map.Entry<String, Change> change : changes.entrySet()) {
+        if (change.getValue().time >= loadTime - CHANGE_VISIBILITY_DELAY_IN_MILLIS) {
+          updated.put(change.getKey(), change.getValue());
+        }
+      }
+      changes = updated;
+    }
+  }
+
+  /**
+   * Replaces the places of an index's results that changed since it was built with their
+   * current state, if they still match the query.
+   *
+   * @param words if not null, the words changed places must match, as in {@link PlaceTextIndex}.
+   * @param afterDistanceInKm if not negative, only places after this distance, or at this
+   *     distance with a place id after afterPlaceId, are added.
+   * @return up to resultCount places, ordered by distance and then place id.
+   */
+  private static List<PlaceInfo> applyChanges(List<PlaceInfo> found, List<Change> newer,
+      List<String> words, GeoPt location, long distanceInMeters, double afterDistanceInKm,
+      String afterPlaceId, int resultCount) {
+    if (newer.isEmpty()) {
+      return found.size() > resultCount
+          ? new ArrayList<PlaceInfo>(found.subList(0, resultCount)) : found;
+    }
+
+    Set<String> changedPlaceIds = new HashSet<String>();
+    List<PlaceInfo> places = new ArrayList<PlaceInfo>();
+    for (Change change : newer) {
+      changedPlaceIds.add(change.placeId);
+      Place place = change.place;
+      if (place == null) {
+        continue;
+      }
+      double distanceInKm = GeoDistance.haversineKm(location.getLatitude(),
+          location.getLongitude(), place.getLocation().getLatitude(),
+          place.getLocation().getLongitude());
+      boolean after = afterDistanceInKm < 0 || distanceInKm > afterDistanceInKm
+          || (distanceInKm == afterDistanceInKm && place.getPlaceId().compareTo(afterPlaceId) > 0);
+      if (distanceInKm * 1000 <= distanceInMeters && after && (words == null
+          || PlaceTextIndex.matchesAllWords(place.getName() + " " + place.getAddress(), words))) {
+        PlaceInfo info = new PlaceInfo();
+        info.setplaceID(place.getPlaceId());
+        info.setName(place.getName());
+        info.setAddress(place.getAddress());
+        info.setLocation(place.getLocation());
+        info.setDistanceInKilometers(distanceInKm);
+        places.add(info);
+      }
+    }
+    for (PlaceInfo place : found) {
+      if (!changedPlaceIds.contains(place.getPlaceId())) {
+        places.add(place);
+      }
+    }
+
+    Collections.sort(places, new Comparator<PlaceInfo>() {
+      @Override
+      public int compare(PlaceInfo a, PlaceInfo b) {
+        int result = Double.compare(a.getDistanceInKilometers(), b.getDistanceInKilometers());
+        return result != 0 ? result : a.getPlaceId().compareTo(b.getPlaceId());
+      }
+    });
+    return places.size() > resultCount
+        ? new ArrayList<PlaceInfo>(places.subList(0, resultCount)) : places;
+  }
+
+  /**
+   * Loads the indexes of a new instance from the place snapshot, or from the Place entities if
+   * there is no snapshot yet.
+   */
+  synchronized void warmUp() {
+    if (indexes != null) {
+      return;
+    }
+    PlaceSnapshot snapshot = null;
+    try {
+      snapshot = PlaceSnapshot.open();
+    } catch (RuntimeException e) {
+      log.warning("Cannot open the place snapshot: " + e.getMessage());
+    }
+    if (snapshot != null) {
+      swap(build(snapshot));
+    } else {
+      long loadTime = System.currentTimeMillis();
+      swap(build(PlacesHelper.loadAllPlaces(), loadTime));
+    }
+    refreshCheckTime = System.currentTimeMillis();
+    log.info("Loaded the place indexes with " + indexes.spatial.size() + " places");
+  }
+
+  /**
+   * @return the current indexes. Every {@link #REFRESH_INTERVAL_IN_MILLIS}, one caller looks for
+   *     a newer snapshot and opens it, while concurrent callers are answered from the current
+   *     indexes. Only an instance that has not been warmed up waits for its first indexes.
+   */
+  private Indexes getIndexes() {
+    Indexes current = indexes;
+    if (current == null) {
+      warmUp();
+      return indexes;
+    }
+    long now = System.currentTimeMillis();
+    if (now - refreshCheckTime > REFRESH_INTERVAL_IN_MILLIS
+        && refreshing.compareAndSet(false, true)) {
+      try {
+        // A failed attempt is not repeated before the next interval.
+        refreshCheckTime = now;
+        if (PlaceSnapshot.getLatestVersion() > current.snapshotVersion) {
+          PlaceSnapshot snapshot = PlaceSnapshot.open();
+          if (snapshot != null && snapshot.version > current.snapshotVersion) {
+            swap(build(snapshot));
+            log.info("Opened place snapshot version " + snapshot.version);
+          }
+        }
+      } catch (RuntimeException e) {
+        log.warning("Cannot refresh the place indexes: " + e.getMessage());
+      } finally {
+        refreshing.set(false);
+      }
+    }
+    return indexes;
+  }
+
+  /**
+   * Makes new indexes current, and then forgets the changes they include.
+   */
+  private void swap(Indexes built) {
+    indexes = built;
+    pruneChanges(built.loadTime);
+  }
+
+  /**
+   * @return indexes over the places of a snapshot, whose store is the spatial index.
+   */
+  private static Indexes build(PlaceSnapshot snapshot) {
+    CompactPlaceStore store = snapshot.store;
+    List<Place> places = new ArrayList<Place>(store.size());
+    for (int i = 0; i < store.size(); i++) {
+      places.add(store.getPlaceInfo(i, 0));
+    }
+    return new Indexes(store, PlaceTextIndex.build(places), snapshot.version, snapshot.version);
+  }
+
+  private static Indexes build(List<Place> places, long loadTime) {
+    PlaceSpatialIndex spatial = "kdtree".equals(INDEX_TYPE)
+        ? CompactPlaceStore.build(places, true)
+        : PlaceGridIndex.build(places, CELL_SIZE_IN_DEGREES);
+    return new Indexes(spatial, PlaceTextIndex.build(places), 0, loadTime);
+  }
+}
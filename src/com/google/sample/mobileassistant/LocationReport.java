@@ -0,0 +1,67 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.mobileassistant;
+
+/**
+ * A position of the user's device, as sent in a location report.
+ */
+public class LocationReport {
+
+  private double latitude;
+
+  private double longitude;
+
+  private double accuracyInMeters;
+
+  private long timeInMillis;
+
+  public double getLatitude() {
+    return latitude;
+  }
+
+  public void setLatitude(double latitude) {
+    this.latitude = latitude;
+  }
+
+  public double getLongitude() {
+    return longitude;
+  }
+
+  public void setLongitude(double longitude) {
+    this.longitude = longitude;
+  }
+
+  /**
+   * @return the radius of uncertainty of the position, or 0 if unknown.
+   */
+  public double getAccuracyInMeters() {
+    return accuracyInMeters;
+  }
+
+  public void setAccuracyInMeters(double accuracyInMeters) {
+    this.accuracyInMeters = accuracyInMeters;
+  }
+
+  /**
+   * @return the time of the position in milliseconds since the epoch.
+   */
+  public long getTimeInMillis() {
+    return timeInMillis;
+  }
+
+  public void setTimeInMillis(long timeInMillis) {
+    this.timeInMillis = timeInMillis;
+  }
+}
@@ -0,0 +1,33 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.mobileassistant;
+
+import java.util.List;
+
+/**
+ * Positions of the user's device collected since its previous location report.
+ */
+public class LocationReportBatch {
+
+  private List<LocationReport> reports;
+
+  public List<LocationReport> getReports() {
+    return reports;
+  }
+
+  public void setReports(List<LocationReport> reports) {
+    this.reports = reports;
+  }
+}
@@ -14,18 +14,22 @@
  */
 package com.google.sample.mobileassistant;
 
-import com.google.appengine.api.search.Document;
-import com.google.appengine.api.search.GetRequest;
-import com.google.appengine.api.search.GetResponse;
-import com.google.appengine.api.search.Index;
-import com.google.appengine.api.search.PutException;
-import com.google.appengine.api.search.StatusCode;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
 
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
 
-import javax.persistence.EntityManager;
-import javax.persistence.Query;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -36,59 +40,248 @@ import javax.servlet.http.HttpServletResponse;
 public class MaintenanceTasksServlet extends HttpServlet {
 
   private static final long serialVersionUID = 1L;
+  private static final Logger log = Logger.getLogger(MaintenanceTasksServlet.class.getName());
+
+  private static final String SYNC_KIND = "PlaceIndexSync";
+  private static final String SYNC_NAME = "lastRun";
+  private static final String SYNC_TIME_PROPERTY = "time";
+  // Places written while the previous run was reading are picked up again.
+  private static final long SYNC_OVERLAP_IN_MILLIS = 10 * 60 * 1000;
 
   @Override
   public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    if ("/admin/placesnapshot".equals(req.getServletPath())) {
+      writePlaceSnapshot(resp);
+      return;
+    }
+    if ("/admin/placemetrics".equals(req.getServletPath())) {
+      resp.setContentType("text/plain");
+      for (Map.Entry<String, Long> metric : PlaceMetrics.getTotals().entrySet()) {
+        resp.getWriter().println(metric.getKey() + " " + metric.getValue());
+      }
+      return;
+    }
+    if ("/admin/rebuildstatus".equals(req.getServletPath())) {
+      resp.setContentType("text/plain");
+      Map<String, Object> status = PlaceIndexRebuild.getStatus();
+      if (status.isEmpty()) {
+        resp.getWriter().println("No rebuild has been started");
+      }
+      for (Map.Entry<String, Object> value : status.entrySet()) {
+        resp.getWriter().println(value.getKey() + ": " + value.getValue());
+      }
+      return;
+    }
+
     resp.setContentType("text/plain");
-    if (!buildSearchIndexForPlaces()) {
-      resp.getWriter().println("MaintenanceTasks failed. Try again by refreshing the page.");
+    PrintWriter out = resp.getWriter();
+    if ("/admin/purgesearchindex".equals(req.getServletPath())) {
+      // Deleting documents must not be triggered by a link or a page reload.
+      resp.setStatus(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+      resp.setHeader("Allow", "POST");
+      out.println("Send a POST request with the name of the index as the index parameter");
+      return;
+    }
+    if ("/admin/writeplacesnapshot".equals(req.getServletPath())) {
+      if (!writePlaceSnapshot(out)) {
+        out.println("MaintenanceTasks failed. Try again by refreshing the page.");
+        return;
+      }
+      out.println("MaintenanceTasks completed");
+      return;
+    }
+    if ("/admin/syncsearchindex".equals(req.getServletPath())) {
+      if (!syncSearchIndexForPlaces(out)) {
+        out.println("MaintenanceTasks failed. Try again by refreshing the page.");
+        return;
+      }
+      out.println("MaintenanceTasks completed");
       return;
     }
-    resp.getWriter().println("MaintenanceTasks completed");
+    if ("/admin/reconcilesearchindex".equals(req.getServletPath())) {
+      if (!reconcileSearchIndexForPlaces(out)) {
+        out.println("MaintenanceTasks failed. Try again by refreshing the page.");
+        return;
+      }
+      out.println("MaintenanceTasks completed");
+      return;
+    }
+    if (!buildSearchIndexForPlaces(out)) {
+      out.println("MaintenanceTasks failed. Try again by refreshing the page.");
+      return;
+    }
+    out.println("MaintenanceTasks completed");
   }
 
-  @SuppressWarnings({"cast", "unchecked"})
-  private boolean buildSearchIndexForPlaces() {
-    Index index = PlacesHelper.getIndex();
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    if (!"/admin/purgesearchindex".equals(req.getServletPath())) {
+      resp.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+      return;
+    }
 
-    removeAllDocumentsFromIndex();
+    resp.setContentType("text/plain");
+    PrintWriter out = resp.getWriter();
+    if (!purgeSearchIndex(req.getParameter("index"), out)) {
+      out.println("MaintenanceTasks failed.");
+      return;
+    }
+    out.println("MaintenanceTasks completed");
+  }
 
-    EntityManager mgr = getEntityManager();
+  /**
+   * Re-indexes the places changed since the previous run, in case a sync task was lost, and
+   * records them in the nearest places table. Places are synced one by one through task queue
+   * tasks when they are written, so this is usually cheap.
+   *
+   * @param out receives the duration and throughput of each step.
+   */
+  private boolean syncSearchIndexForPlaces(PrintWriter out) {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    Key lastRunKey = KeyFactory.createKey(SYNC_KIND, SYNC_NAME);
+    Date since = new Date(0);
     try {
-      Query query = mgr.createQuery("select from Place as Place");
-      for (Object obj : (List<Object>) query.getResultList()) {
-        Place place = (Place) obj;
-        Document placeAsDocument = PlacesHelper.buildDocument(
-            place.getPlaceId(), place.getName(), place.getAddress(), place.getLocation());
-        try {
-          index.put(placeAsDocument);
-        } catch (PutException e) {
-          if (StatusCode.TRANSIENT_ERROR.equals(e.getOperationResult().getCode())) {
-            return false;
-          }
-        }
-      }
+      Date lastRun = (Date) datastore.get(lastRunKey).getProperty(SYNC_TIME_PROPERTY);
+      since = new Date(lastRun.getTime() - SYNC_OVERLAP_IN_MILLIS);
+    } catch (EntityNotFoundException e) {
+      // first run: everything with a modification date
+    }
+
+    Date start = new Date();
+    List<Place> changed = PlacesHelper.loadPlacesModifiedSince(since);
+    try {
+      PlacesHelper.getBackend().putPlaces(changed);
     } catch (Exception e) {
+      log.warning("Exception when indexing places: " + e.getMessage());
       return false;
-    } finally {
-      mgr.close();
     }
+    PlacesHelper.onPlacesChanged(changed, Collections.<String>emptyList());
+    out.println("Re-indexed " + changed.size() + " places changed since " + since + " in "
+        + (System.currentTimeMillis() - start.getTime()) + " ms");
 
+    Entity lastRun = new Entity(lastRunKey);
+    lastRun.setUnindexedProperty(SYNC_TIME_PROPERTY, start);
+    datastore.put(lastRun);
     return true;
   }
 
-  private void removeAllDocumentsFromIndex() {
-    Index index = PlacesHelper.getIndex();
+  /**
+   * Compares every place with its search document and puts or removes only those that differ.
+   * Documents are removed for places that no longer exist, which the nearest places table may
+   * still hold, so those are recorded in it; places put had only stale documents.
+   *
+   * @param out receives the number of places found in each state and the duration.
+   * @see PlaceIndexReconciler
+   */
+  private boolean reconcileSearchIndexForPlaces(PrintWriter out) {
+    PlaceSearchBackend backend = PlacesHelper.getBackend();
+    if (!(backend instanceof SearchApiPlaceSearchBackend)) {
+      out.println("The places are not indexed by the Search API");
+      return true;
+    }
 
-    GetRequest request = GetRequest.newBuilder().setReturningIdsOnly(true).build();
+    long start = System.currentTimeMillis();
+    PlaceIndexReconciler reconciler = new PlaceIndexReconciler(
+        (SearchApiPlaceSearchBackend) backend, SearchApiPlaceSearchBackend.getIndex());
+    try {
+      reconciler.run();
+    } catch (Exception e) {
+      log.warning("Exception when reconciling the index: " + e.getMessage());
+      return false;
+    }
+    out.println("Reconciled the index in " + (System.currentTimeMillis() - start) + " ms: "
+        + reconciler.unchangedCount + " unchanged, " + reconciler.putCount + " put, "
+        + reconciler.removedCount + " removed");
 
-    GetResponse<Document> response = index.getRange(request);
-    for (Document document : response.getResults()) {
-      index.delete(document.getId());
+    PlacesHelper.onPlacesChanged(
+        Collections.<Place>emptyList(), reconciler.getRemovedPlaceIds());
+    return true;
+  }
+
+  /**
+   * Writes a place snapshot, which the instances of the "memory" backend open within their
+   * refresh interval. Nothing is written for the Search API backend, which does not use it.
+   *
+   * @param out receives the time taken.
+   */
+  private boolean writePlaceSnapshot(PrintWriter out) {
+    if (!(PlacesHelper.getBackend() instanceof InMemoryPlaceSearchBackend)) {
+      out.println("The places are not indexed in memory");
+      return true;
     }
+    long start = System.currentTimeMillis();
+    try {
+      PlacesHelper.writePlaceSnapshot();
+    } catch (Exception e) {
+      log.warning("Exception when writing the place snapshot: " + e.getMessage());
+      return false;
+    }
+    out.println("Wrote the place snapshot in " + (System.currentTimeMillis() - start) + " ms");
+    return true;
   }
 
-  private static EntityManager getEntityManager() {
-    return EMF.get().createEntityManager();
+  /**
+   * Starts rebuilding the search index and the nearest places table. The places are
+   * indexed by parallel tasks into a new version of the index, which replaces the current one
+   * once complete, so that searches keep being answered meanwhile.
+   *
+   * @param out receives the number of shards and the time taken to start them.
+   * @see PlaceIndexRebuild
+   */
+  private boolean buildSearchIndexForPlaces(PrintWriter out) {
+    long start = System.currentTimeMillis();
+    int shards;
+    try {
+      shards = PlaceIndexRebuild.start();
+    } catch (Exception e) {
+      log.warning("Exception when starting to rebuild the index: " + e.getMessage());
+      return false;
+    }
+    out.println("Started rebuilding the index in " + shards + " shards in "
+        + (System.currentTimeMillis() - start) + " ms. See /admin/rebuildstatus for progress.");
+    return true;
+  }
+
+  /**
+   * Adds a task that deletes every document of a Places search index. Versions of the index in
+   * use are refused, here and again by the task.
+   *
+   * @param indexName the name of the index, such as Places or Places_v3.
+   * @param out receives the outcome.
+   * @see PlaceIndexPurge#schedule(String)
+   */
+  private boolean purgeSearchIndex(String indexName, PrintWriter out) {
+    if (indexName == null || !indexName.startsWith("Places")) {
+      out.println("Pass the name of a Places search index as the index parameter");
+      return false;
+    }
+    if (PlacesIndexVersions.isInUse(indexName)) {
+      out.println(indexName + " is the active, building or previous version of the index");
+      return false;
+    }
+
+    try {
+      PlaceIndexPurge.schedule(indexName);
+    } catch (Exception e) {
+      log.warning("Exception when scheduling the purge of the index: " + e.getMessage());
+      return false;
+    }
+    out.println("Added a task to delete the documents of " + indexName);
+    return true;
+  }
+
+  /**
+   * Sends the latest place snapshot, to be bundled with the application as
+   * {@link PlaceSnapshot#SNAPSHOT_FILE}.
+   */
+  private void writePlaceSnapshot(HttpServletResponse resp) throws IOException {
+    ByteBuffer snapshot = PlaceSnapshot.readFile();
+    if (snapshot == null) {
+      resp.sendError(HttpServletResponse.SC_NOT_FOUND, "No place snapshot has been built yet");
+      return;
+    }
+    resp.setContentType("application/octet-stream");
+    resp.setContentLength(snapshot.remaining());
+    resp.getOutputStream().write(snapshot.array(), snapshot.arrayOffset(), snapshot.remaining());
   }
 }
@@ -0,0 +1,44 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.mobileassistant;
+
+import java.util.List;
+
+/**
+ * Batch nearby-places request and response. The request sets the queries, and the response
+ * holds one result per query, in the same order.
+ */
+public class NearbyPlacesBatch {
+
+  private List<NearbyPlacesQuery> queries;
+
+  private List<NearbyPlacesResult> results;
+
+  public List<NearbyPlacesQuery> getQueries() {
+    return queries;
+  }
+
+  public void setQueries(List<NearbyPlacesQuery> queries) {
+    this.queries = queries;
+  }
+
+  public List<NearbyPlacesResult> getResults() {
+    return results;
+  }
+
+  public void setResults(List<NearbyPlacesResult> results) {
+    this.results = results;
+  }
+}
@@ -0,0 +1,40 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.mobileassistant;
+
+import java.util.List;
+
+/**
+ * Places found for one query of a batch nearby-places request.
+ */
+public class NearbyPlacesResult {
+
+  private List<PlaceInfo> places;
+
+  public NearbyPlacesResult() {
+  }
+
+  public NearbyPlacesResult(List<PlaceInfo> places) {
+    this.places = places;
+  }
+
+  public List<PlaceInfo> getPlaces() {
+    return places;
+  }
+
+  public void setPlaces(List<PlaceInfo> places) {
+    this.places = places;
+  }
+}
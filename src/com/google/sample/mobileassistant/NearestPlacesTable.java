@@ -0,0 +1,506 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.mobileassistant;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.GeoPt;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+/**
+ * Materialized table of the places nearest to each occupied geo cell, built after each rebuild
+ * of the search index.
+ *
+ * <p>Each occupied cell of {@link #CELL_SIZE_IN_DEGREES} has a datastore entity holding the
+ * {@link #PLACES_PER_CELL} places closest to the cell center, sorted by distance, so a query
+ * from that cell is one key lookup (memcache first) plus an exact trim by the caller's own
+ * location. Queries the list cannot answer exactly, and queries from empty cells, fall back to
+ * the search backend.
+ *
+ * <p>Every build writes a new version of the table and then switches an active version pointer
+ * to it. Places put or removed later are recorded on the pointer, and queries apply them on top
+ * of the lists of the cells, so the table never serves places that no longer exist. Only when
+ * more than {@link #MAX_CHANGES} places have changed is the table turned off until the next
+ * build.
+ */
+class NearestPlacesTable {
+  private static final Logger log = Logger.getLogger(NearestPlacesTable.class.getName());
+
+  static final double CELL_SIZE_IN_DEGREES = 0.01;
+  static final int PLACES_PER_CELL = 100;
+
+  private static final String CELL_KIND = "NearestPlaces";
+  private static final String POINTER_KIND = "NearestPlacesTable";
+  private static final String POINTER_NAME = "active";
+  private static final String VERSION_PROPERTY = "version";
+  private static final String PLACES_PROPERTY = "places";
+  private static final String CHANGES_PROPERTY = "changes";
+  private static final String POINTER_MEMCACHE_KEY = "NearestPlacesTable:pointer";
+
+  // The largest radius PlaceEndpoint accepts.
+  private static final long MAX_DISTANCE_IN_KM = 200;
+  private static final int PUT_BATCH_SIZE = 500;
+  private static final int MEMCACHE_EXPIRATION_IN_SECONDS = 24 * 60 * 60;
+  private static final long POINTER_REFRESH_INTERVAL_IN_MILLIS = 5 * 1000;
+  // Bounds how long a pointer read before a change can stay in memcache.
+  private static final int POINTER_MEMCACHE_EXPIRATION_IN_SECONDS = 60;
+  // Every query applies the changes, so past this many the table is turned off instead.
+  static final int MAX_CHANGES = 200;
+  private static final int MAX_ATTEMPTS = 5;
+
+  private static final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+
+  // Read without a lock by every query; refreshed by one thread at a time, while the others keep
+  // using the cached pointer.
+  private static volatile Pointer activePointer = Pointer.DISABLED;
+  private static volatile long activePointerReadTime;
+  private static final AtomicBoolean refreshing = new AtomicBoolean();
+
+  /**
+   * The active version of the table and the places changed since it was built.
+   */
+  static class Pointer implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    static final Pointer DISABLED = disabled(0);
+
+    // 0 if the table is off.
+    final long version;
+    // The time each changed place was last put or removed, by place id.
+    final LinkedHashMap<String, Long> changeTimes;
+    // The current state of the changed places that still have a location.
+    final PlacesCache.Candidates changedPlaces;
+    // The time of the latest change that was not recorded because the table was off, or 0.
+    final long lostChangeTime;
+
+    Pointer(long version, LinkedHashMap<String, Long> changeTimes, List<PlaceInfo> changedPlaces,
+        long lostChangeTime) {
+      this.version = version;
+      this.changeTimes = changeTimes;
+      this.changedPlaces = new PlacesCache.Candidates(changedPlaces, 0);
+      this.lostChangeTime = lostChangeTime;
+    }
+
+    static Pointer disabled(long lostChangeTime) {
+      return new Pointer(
+          0, new LinkedHashMap<String, Long>(), new ArrayList<PlaceInfo>(), lostChangeTime);
+    }
+
+    /**
+     * @return this pointer with the given places recorded as changed at the given time, or a
+     *     disabled pointer if the table is off or too many places have changed.
+     */
+    Pointer withChanges(List<Place> putPlaces, List<String> removedPlaceIds, long time) {
+      if (version == 0) {
+        return disabled(time);
+      }
+      LinkedHashMap<String, Long> times = new LinkedHashMap<String, Long>(changeTimes);
+      Map<String, PlaceInfo> places = new LinkedHashMap<String, PlaceInfo>();
+      for (int i = 0; i < changedPlaces.size(); i++) {
+        places.put(changedPlaces.placeIds[i], changedPlaces.getPlaceInfo(i, 0));
+      }
+      for (String placeId : removedPlaceIds) {
+        times.remove(placeId);
+        times.put(placeId, time);
+        places.remove(placeId);
+      }
+      for (Place place : putPlaces) {
+        times.remove(place.getPlaceId());
+        times.put(place.getPlaceId(), time);
+        places.remove(place.getPlaceId());
+        if (place.getLocation() != null) {
+          PlaceInfo info = new PlaceInfo();
+          info.setplaceID(place.getPlaceId());
+          info.setName(place.getName());
+          info.setAddress(place.getAddress());
+          info.setLocation(place.getLocation());
+          places.put(place.getPlaceId(), info);
+        }
+      }
+      if (times.size() > MAX_CHANGES) {
+        return disabled(time);
+      }
+      return new Pointer(version, times, new ArrayList<PlaceInfo>(places.values()), 0);
+    }
+
+    /**
+     * @return a pointer to another version that keeps the changes recorded since a given time,
+     *     which that version may not include, or a disabled pointer if some were not recorded.
+     */
+    Pointer withVersion(long newVersion, long changedSince) {
+      if (lostChangeTime >= changedSince) {
+        return this;
+      }
+      LinkedHashMap<String, Long> times = new LinkedHashMap<String, Long>();
+      for (Map.Entry<String, Long> change : changeTimes.entrySet()) {
+        if (change.getValue() >= changedSince) {
+          times.put(change.getKey(), change.getValue());
+        }
+      }
+      List<PlaceInfo> places = new ArrayList<PlaceInfo>();
+      for (int i = 0; i < changedPlaces.size(); i++) {
+        if (times.containsKey(changedPlaces.placeIds[i])) {
+          places.add(changedPlaces.getPlaceInfo(i, 0));
+        }
+      }
+      return new Pointer(newVersion, times, places, 0);
+    }
+
+    /**
+     * @return the places of a cell's list that have not changed, plus all changed places. They
+     *     still include every place within the covered distance of the list.
+     */
+    PlacesCache.Candidates applyTo(PlacesCache.Candidates candidates) {
+      if (changeTimes.isEmpty()) {
+        return candidates;
+      }
+      List<PlaceInfo> places = new ArrayList<PlaceInfo>();
+      for (int i = 0; i < candidates.size(); i++) {
+        if (!changeTimes.containsKey(candidates.placeIds[i])) {
+          places.add(candidates.getPlaceInfo(i, 0));
+        }
+      }
+      for (int i = 0; i < changedPlaces.size(); i++) {
+        places.add(changedPlaces.getPlaceInfo(i, 0));
+      }
+      return new PlacesCache.Candidates(places, candidates.coveredDistanceInKm);
+    }
+  }
+
+  /**
+   * Returns places within a given distance from a location, closest first, from the list of the
+   * location's cell.
+   *
+   * @return the places, or null if there is no list for the cell or it cannot answer the query
+   *     exactly.
+   */
+  static List<PlaceInfo> getPlaces(GeoPt location, long distanceInMeters, int resultCount) {
+    if (resultCount > PLACES_PER_CELL) {
+      return null;
+    }
+
+    try {
+      Pointer pointer = getActivePointer();
+      if (pointer.version == 0) {
+        return null;
+      }
+
+      long row = (long) Math.floor((location.getLatitude() + 90) / CELL_SIZE_IN_DEGREES);
+      long column = (long) Math.floor((location.getLongitude() + 180) / CELL_SIZE_IN_DEGREES);
+      PlacesCache.Candidates candidates = lookup(getCellName(pointer.version, row, column));
+      if (candidates == null) {
+        return null;
+      }
+      candidates = pointer.applyTo(candidates);
+
+      double centerLatitude = (row + 0.5) * CELL_SIZE_IN_DEGREES - 90;
+      double centerLongitude = (column + 0.5) * CELL_SIZE_IN_DEGREES - 180;
+      return PlacesCache.getPlacesFromCandidates(candidates, location, distanceInMeters / 1000.0,
+          resultCount, GeoDistance.haversineKm(centerLatitude, centerLongitude,
+              location.getLatitude(), location.getLongitude()));
+    } catch (RuntimeException e) {
+      log.warning("Exception when reading the nearest places table: " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Adds to a version of the table being built the cells of the given places that it does not
+   * have yet. A version is built a batch of places at a time, and activated once all places have
+   * been added.
+   *
+   * @param backend the search backend the nearest places of each cell are found with.
+   * @return the number of cells added.
+   */
+  static int putCells(long version, List<Place> places, PlaceSearchBackend backend) {
+    Set<Key> cellKeys = new LinkedHashSet<Key>();
+    for (Place place : places) {
+      GeoPt location = place.getLocation();
+      if (location != null) {
+        long row = (long) Math.floor((location.getLatitude() + 90) / CELL_SIZE_IN_DEGREES);
+        long column = (long) Math.floor((location.getLongitude() + 180) / CELL_SIZE_IN_DEGREES);
+        cellKeys.add(KeyFactory.createKey(CELL_KIND, getCellName(version, row, column)));
+      }
+    }
+
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    cellKeys.removeAll(datastore.get(cellKeys).keySet());
+    List<Entity> batch = new ArrayList<Entity>();
+    for (Key cellKey : cellKeys) {
+      String[] cell = cellKey.getName().split(":");
+      long row = Long.parseLong(cell[1]);
+      long column = Long.parseLong(cell[2]);
+      double centerLatitude = (row + 0.5) * CELL_SIZE_IN_DEGREES - 90;
+      double centerLongitude = (column + 0.5) * CELL_SIZE_IN_DEGREES - 180;
+
+      // Any place within the largest radius of a caller in this cell is within that radius
+      // plus the cell's half-diagonal of the cell center.
+      double searchDistanceInKm = MAX_DISTANCE_IN_KM + GeoDistance.haversineKm(centerLatitude,
+          centerLongitude, centerLatitude + CELL_SIZE_IN_DEGREES / 2,
+          centerLongitude + CELL_SIZE_IN_DEGREES / 2);
+      List<PlaceInfo> nearest = backend.getPlaces(new GeoPt((float) centerLatitude,
+          (float) centerLongitude), (long) Math.ceil(searchDistanceInKm * 1000), PLACES_PER_CELL);
+
+      double coveredDistanceInKm = searchDistanceInKm;
+      if (nearest.size() >= PLACES_PER_CELL) {
+        // Less a meter, for the rounding of the center to the float precision of GeoPt.
+        coveredDistanceInKm = nearest.get(nearest.size() - 1).getDistanceInKilometers() - 0.001;
+      }
+
+      Entity entity = new Entity(cellKey);
+      entity.setProperty(VERSION_PROPERTY, version);
+      entity.setUnindexedProperty(PLACES_PROPERTY,
+          new Blob(serialize(new PlacesCache.Candidates(nearest, coveredDistanceInKm))));
+      batch.add(entity);
+      if (batch.size() == PUT_BATCH_SIZE) {
+        datastore.put(batch);
+        batch.clear();
+      }
+    }
+    if (!batch.isEmpty()) {
+      datastore.put(batch);
+    }
+    return cellKeys.size();
+  }
+
+  /**
+   * Switches to a version of the table whose cells have all been added, and deletes the
+   * previous versions.
+   *
+   * @param loadTime when the places started to be read. Changes recorded since then are kept on
+   *     top of the new version.
+   */
+  static void activate(long version, long loadTime) {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    Pointer pointer = updatePointer(datastore, null, null, version, loadTime);
+    if (pointer.version == 0) {
+      log.warning("Places changed while the nearest places table was built were not recorded, "
+          + "so the table stays off");
+    }
+
+    deleteVersionsBefore(datastore, version);
+    log.info("Activated the nearest places table version " + version);
+  }
+
+  /**
+   * Records places as put or removed, so that queries on every instance see their current
+   * state. The table is turned off instead if too many places have changed since it was built.
+   */
+  static void recordChanges(List<Place> putPlaces, List<String> removedPlaceIds) {
+    if (putPlaces.isEmpty() && removedPlaceIds.isEmpty()) {
+      return;
+    }
+    updatePointer(DatastoreServiceFactory.getDatastoreService(), putPlaces, removedPlaceIds, 0,
+        0);
+  }
+
+  /**
+   * Stops serving the table on every instance until the next build.
+   */
+  static void disable() {
+    try {
+      Pointer pointer = Pointer.disabled(System.currentTimeMillis());
+      Entity entity = new Entity(POINTER_KIND, POINTER_NAME);
+      entity.setUnindexedProperty(VERSION_PROPERTY, pointer.version);
+      entity.setUnindexedProperty(CHANGES_PROPERTY, new Blob(serialize(pointer)));
+      DatastoreServiceFactory.getDatastoreService().put(entity);
+      setActivePointer(pointer);
+    } catch (RuntimeException e) {
+      log.warning("Exception when disabling the nearest places table: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Updates the pointer in a transaction, either recording changed places or, if putPlaces is
+   * null, switching to a new version. Changes are recorded even while the table is off, as the
+   * time of the latest one, so that a build does not activate a version that misses them.
+   *
+   * @return the pointer now active.
+   */
+  private static Pointer updatePointer(DatastoreService datastore, List<Place> putPlaces,
+      List<String> removedPlaceIds, long newVersion, long changedSince) {
+    Key key = KeyFactory.createKey(POINTER_KIND, POINTER_NAME);
+    for (int attempt = 1; ; attempt++) {
+      Transaction txn = datastore.beginTransaction();
+      try {
+        Pointer pointer;
+        try {
+          Blob changes = (Blob) datastore.get(txn, key).getProperty(CHANGES_PROPERTY);
+          pointer = changes == null ? Pointer.DISABLED : (Pointer) deserialize(changes.getBytes());
+        } catch (EntityNotFoundException e) {
+          pointer = Pointer.DISABLED;
+        }
+
+        Pointer updated = putPlaces == null ? pointer.withVersion(newVersion, changedSince)
+            : pointer.withChanges(putPlaces, removedPlaceIds, System.currentTimeMillis());
+
+        Entity entity = new Entity(key);
+        entity.setUnindexedProperty(VERSION_PROPERTY, updated.version);
+        entity.setUnindexedProperty(CHANGES_PROPERTY, new Blob(serialize(updated)));
+        datastore.put(txn, entity);
+        txn.commit();
+        setActivePointer(updated);
+        if (pointer.version != 0 && updated.version == 0) {
+          log.warning("Turned off the nearest places table after more than " + MAX_CHANGES
+              + " changes; it is back on after the next build");
+        }
+        return updated;
+      } catch (ConcurrentModificationException e) {
+        if (attempt == MAX_ATTEMPTS) {
+          throw e;
+        }
+      } finally {
+        if (txn.isActive()) {
+          txn.rollback();
+        }
+      }
+    }
+  }
+
+  private static void setActivePointer(Pointer pointer) {
+    memcache.put(POINTER_MEMCACHE_KEY, pointer,
+        Expiration.byDeltaSeconds(POINTER_MEMCACHE_EXPIRATION_IN_SECONDS));
+    activePointer = pointer;
+    activePointerReadTime = System.currentTimeMillis();
+  }
+
+  private static Pointer getActivePointer() {
+    long now = System.currentTimeMillis();
+    if (now - activePointerReadTime > POINTER_REFRESH_INTERVAL_IN_MILLIS
+        && refreshing.compareAndSet(false, true)) {
+      try {
+        activePointer = readActivePointer();
+        activePointerReadTime = now;
+      } finally {
+        refreshing.set(false);
+      }
+    }
+    return activePointer;
+  }
+
+  private static Pointer readActivePointer() {
+    Pointer pointer = (Pointer) memcache.get(POINTER_MEMCACHE_KEY);
+    if (pointer == null) {
+      try {
+        Blob changes = (Blob) DatastoreServiceFactory.getDatastoreService().get(
+            KeyFactory.createKey(POINTER_KIND, POINTER_NAME)).getProperty(CHANGES_PROPERTY);
+        pointer = changes == null ? Pointer.DISABLED : (Pointer) deserialize(changes.getBytes());
+      } catch (EntityNotFoundException e) {
+        pointer = Pointer.DISABLED;
+      }
+      memcache.put(POINTER_MEMCACHE_KEY, pointer,
+          Expiration.byDeltaSeconds(POINTER_MEMCACHE_EXPIRATION_IN_SECONDS));
+    }
+    return pointer;
+  }
+
+  private static PlacesCache.Candidates lookup(String cellName) {
+    String memcacheKey = CELL_KIND + ":" + cellName;
+    PlacesCache.Candidates candidates = (PlacesCache.Candidates) memcache.get(memcacheKey);
+    if (candidates != null) {
+      return candidates;
+    }
+
+    Entity entity;
+    try {
+      entity = DatastoreServiceFactory.getDatastoreService().get(
+          KeyFactory.createKey(CELL_KIND, cellName));
+    } catch (EntityNotFoundException e) {
+      return null;
+    }
+    candidates = (PlacesCache.Candidates) deserialize(
+        ((Blob) entity.getProperty(PLACES_PROPERTY)).getBytes());
+    memcache.put(memcacheKey, candidates,
+        Expiration.byDeltaSeconds(MEMCACHE_EXPIRATION_IN_SECONDS));
+    return candidates;
+  }
+
+  private static void deleteVersionsBefore(DatastoreService datastore, long version) {
+    Query query = new Query(CELL_KIND)
+        .setFilter(new FilterPredicate(VERSION_PROPERTY, FilterOperator.LESS_THAN, version))
+        .setKeysOnly();
+    List<Key> keys = new ArrayList<Key>();
+    for (Entity entity : datastore.prepare(query).asIterable(
+        FetchOptions.Builder.withChunkSize(PUT_BATCH_SIZE))) {
+      keys.add(entity.getKey());
+      if (keys.size() == PUT_BATCH_SIZE) {
+        datastore.delete(keys);
+        keys.clear();
+      }
+    }
+    if (!keys.isEmpty()) {
+      datastore.delete(keys);
+    }
+  }
+
+  private static String getCellName(long version, long row, long column) {
+    return version + ":" + row + ":" + column;
+  }
+
+  private static byte[] serialize(Serializable value) {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      ObjectOutputStream out = new ObjectOutputStream(bytes);
+      out.writeObject(value);
+      out.close();
+      return bytes.toByteArray();
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static Object deserialize(byte[] bytes) {
+    try {
+      ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+      try {
+        return in.readObject();
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    } catch (ClassNotFoundException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
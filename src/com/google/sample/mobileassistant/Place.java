@@ -17,6 +17,8 @@ package com.google.sample.mobileassistant;
 import com.google.appengine.api.datastore.GeoPt;
 import com.google.appengine.api.datastore.Key;
 
+import java.util.Date;
+
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
@@ -39,6 +41,8 @@ public class Place {
 
   private GeoPt location;
 
+  private Date modifiedDate;
+
   public Key getKey() {
     return key;
   }
@@ -74,4 +78,15 @@ public class Place {
   public void setLocation(GeoPt location) {
     this.location = location;
   }
+
+  /**
+   * @return when the place was last inserted or updated through PlaceEndpoint.
+   */
+  public Date getModifiedDate() {
+    return modifiedDate;
+  }
+
+  public void setModifiedDate(Date modifiedDate) {
+    this.modifiedDate = modifiedDate;
+  }
 }
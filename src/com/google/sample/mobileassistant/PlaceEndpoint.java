@@ -17,10 +17,13 @@ import com.google.api.server.spi.ServiceException;
 import com.google.api.server.spi.config.Api;
 import com.google.api.server.spi.config.ApiMethod;
 import com.google.api.server.spi.config.ApiNamespace;
+import com.google.api.server.spi.config.DefaultValue;
 import com.google.api.server.spi.response.BadRequestException;
 import com.google.appengine.api.datastore.GeoPt;
 import com.google.appengine.api.users.User;
 
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 
 import javax.inject.Named;
@@ -35,6 +38,11 @@ import javax.persistence.EntityManager;
     ApiKeysAndIds.ANDROID_CLIENT_ID, ApiKeysAndIds.IOS_CLIENT_ID, ApiKeysAndIds.WEB_CLIENT_ID},
     audiences = {ApiKeysAndIds.AUDIENCE_ID})
 public class PlaceEndpoint {
+  private static final int MAX_BATCH_QUERIES = 25;
+
+  // Paged listing may cover the whole globe: no two points are further apart than this.
+  private static final long MAX_PAGED_DISTANCE_IN_KM = 20038;
+
   /**
    * This method lists nearby places. It uses HTTP GET method.
    *
@@ -45,42 +53,131 @@ public class PlaceEndpoint {
       @Named("latitude") String latitudeString, @Named("distanceInKm") long distanceInKm,
       @Named("count") int count, User user) throws ServiceException {
 
-    float latitude;
-    float longitude;
-    GeoPt location;
+    GeoPt location = parseLocation(latitudeString, longitudeString);
 
-    try {
-      latitude = (float) Double.parseDouble(latitudeString);
-    } catch (Exception e) {
-      throw new BadRequestException("Invalid value of 'latitude' argument");
+    List<PlaceInfo> places = PlacesHelper.getPlaces(
+        location, 1000 * limitDistanceInKm(distanceInKm), limitCount(count));
+
+    return places;
+  }
+
+  /**
+   * This method lists nearby places whose name or address matches a text, for search as you
+   * type. It uses HTTP GET method.
+   *
+   * @param query the words to be matched; each must start a word of the name or address.
+   * @return List of matching nearby places, closest first.
+   */
+  @ApiMethod(httpMethod = "GET", path = "place/search")
+  public List<PlaceInfo> search(@Named("query") String query,
+      @Named("longitude") String longitudeString, @Named("latitude") String latitudeString,
+      @Named("distanceInKm") long distanceInKm, @Named("count") int count, User user)
+      throws ServiceException {
+
+    GeoPt location = parseLocation(latitudeString, longitudeString);
+
+    if (query == null || PlaceTextIndex.tokenize(query).isEmpty()) {
+      throw new BadRequestException("Invalid value of 'query' argument");
     }
 
-    try {
-      longitude = (float) Double.parseDouble(longitudeString);
-    } catch (Exception e) {
-      throw new BadRequestException("Invalid value of 'longitude' argument");
+    List<PlaceInfo> places = PlacesHelper.getBackend().searchPlaces(
+        query, location, 1000 * limitDistanceInKm(distanceInKm), limitCount(count));
+
+    return places;
+  }
+
+  /**
+   * This method lists nearby places page by page, without the distance limit of list. It uses
+   * HTTP GET method.
+   *
+   * @param cursor the nextCursor of the previous page, or empty for the first page.
+   * @return A page of nearby places, closest first, and the cursor of the next page.
+   */
+  @ApiMethod(httpMethod = "GET", path = "place/page")
+  public PlacePage listPage(@Named("longitude") String longitudeString,
+      @Named("latitude") String latitudeString, @Named("distanceInKm") long distanceInKm,
+      @Named("count") int count, @Named("cursor") @DefaultValue("") String cursor, User user)
+      throws ServiceException {
+    GeoPt location = parseLocation(latitudeString, longitudeString);
+
+    if (distanceInKm > MAX_PAGED_DISTANCE_IN_KM) {
+      distanceInKm = MAX_PAGED_DISTANCE_IN_KM;
+    } else if (distanceInKm < 0) {
+      throw new BadRequestException("Invalid value of 'distanceInKm' argument");
     }
 
-    try {
-      location = new GeoPt(latitude, longitude);
-    } catch (Exception e) {
-      throw new BadRequestException("Invalid pair of 'latitude' and 'longitude' arguments");
+    PlacePage page = PlacesHelper.getPlacesPage(location, 1000 * distanceInKm,
+        limitCount(count), cursor == null || cursor.isEmpty() ? null : cursor);
+    if (page == null) {
+      throw new BadRequestException("Invalid value of 'cursor' argument");
     }
 
-    // limit the result set to up to 100 places within up to 200 km
-    if (count > 100) {
-      count = 100;
-    } else if (count <= 0) {
-      throw new BadRequestException("Invalid value of 'count' argument");
+    return page;
+  }
+
+  /**
+   * This method lists nearby places for several locations at once. It uses HTTP POST method.
+   *
+   * @param batch the queries, up to 25 of them.
+   * @return The batch with the places found for each query, in the order of the queries.
+   */
+  @ApiMethod(httpMethod = "POST", path = "place/batch")
+  public NearbyPlacesBatch listBatch(NearbyPlacesBatch batch, User user)
+      throws ServiceException {
+    List<NearbyPlacesQuery> queries = batch.getQueries();
+    if (queries == null || queries.isEmpty() || queries.size() > MAX_BATCH_QUERIES) {
+      throw new BadRequestException(
+          "A batch must have between 1 and " + MAX_BATCH_QUERIES + " queries");
     }
 
-    if (distanceInKm > 200) {
-      distanceInKm = 200;
-    } else if (distanceInKm < 0) {
-      throw new BadRequestException("Invalid value of 'distanceInKm' argument");
+    List<GeoPt> locations = new ArrayList<GeoPt>();
+    List<Long> distancesInMeters = new ArrayList<Long>();
+    List<Integer> counts = new ArrayList<Integer>();
+    for (NearbyPlacesQuery query : queries) {
+      try {
+        locations.add(new GeoPt((float) query.getLatitude(), (float) query.getLongitude()));
+      } catch (Exception e) {
+        throw new BadRequestException("Invalid pair of 'latitude' and 'longitude' arguments");
+      }
+      distancesInMeters.add(1000 * limitDistanceInKm(query.getDistanceInKm()));
+      counts.add(limitCount(query.getCount()));
+    }
+
+    List<NearbyPlacesResult> results = new ArrayList<NearbyPlacesResult>();
+    for (List<PlaceInfo> places :
+        PlacesHelper.getPlacesBatch(locations, distancesInMeters, counts)) {
+      results.add(new NearbyPlacesResult(places));
     }
 
-    List<PlaceInfo> places = PlacesHelper.getPlaces(location, 1000 * distanceInKm, count);
+    NearbyPlacesBatch response = new NearbyPlacesBatch();
+    response.setResults(results);
+    return response;
+  }
+
+  /**
+   * This method lists the places inside a rectangular map viewport. It uses HTTP GET method.
+   *
+   * @return The places inside the viewport, closest to its center first, flagged as truncated
+   *     if parts of the viewport hold too many places to be returned.
+   */
+  @ApiMethod(httpMethod = "GET", path = "place/viewport")
+  public PlacesInViewport listInViewport(@Named("north") String northString,
+      @Named("south") String southString, @Named("east") String eastString,
+      @Named("west") String westString, User user) throws ServiceException {
+
+    double north = parseCoordinate(northString, "north", 90);
+    double south = parseCoordinate(southString, "south", 90);
+    double east = parseCoordinate(eastString, "east", 180);
+    double west = parseCoordinate(westString, "west", 180);
+
+    if (south > north) {
+      throw new BadRequestException("Invalid pair of 'south' and 'north' arguments");
+    }
+
+    PlacesInViewport places = PlacesHelper.getPlacesInViewport(south, west, north, east);
+    if (places == null) {
+      throw new BadRequestException("The viewport is too large");
+    }
 
     return places;
   }
@@ -113,12 +210,14 @@ public class PlaceEndpoint {
   public Place insert(Place place, User user) throws ServiceException {
     EndpointUtil.throwIfNotAdmin(user);
 
+    place.setModifiedDate(new Date());
     EntityManager mgr = getEntityManager();
     try {
       mgr.persist(place);
     } finally {
       mgr.close();
     }
+    PlacesHelper.scheduleIndexSync(place.getPlaceId());
     return place;
   }
 
@@ -131,12 +230,31 @@ public class PlaceEndpoint {
   public Place update(Place place, User user) throws ServiceException {
     EndpointUtil.throwIfNotAdmin(user);
 
+    String previousPlaceId = null;
+    if (place.getKey() != null) {
+      EntityManager mgr = getEntityManager();
+      try {
+        Place previous = mgr.find(Place.class, place.getKey());
+        if (previous != null) {
+          previousPlaceId = previous.getPlaceId();
+        }
+      } finally {
+        mgr.close();
+      }
+    }
+
+    place.setModifiedDate(new Date());
     EntityManager mgr = getEntityManager();
     try {
       mgr.persist(place);
     } finally {
       mgr.close();
     }
+    // A changed place id leaves a search document behind under the previous id.
+    if (previousPlaceId != null && !previousPlaceId.equals(place.getPlaceId())) {
+      PlacesHelper.scheduleIndexSync(previousPlaceId);
+    }
+    PlacesHelper.scheduleIndexSync(place.getPlaceId());
     return place;
   }
 
@@ -156,6 +274,67 @@ public class PlaceEndpoint {
     } finally {
       mgr.close();
     }
+    PlacesHelper.scheduleIndexSync(place.getPlaceId());
+  }
+
+  private static GeoPt parseLocation(String latitudeString, String longitudeString)
+      throws BadRequestException {
+    float latitude;
+    float longitude;
+    GeoPt location;
+
+    try {
+      latitude = (float) Double.parseDouble(latitudeString);
+    } catch (Exception e) {
+      throw new BadRequestException("Invalid value of 'latitude' argument");
+    }
+
+    try {
+      longitude = (float) Double.parseDouble(longitudeString);
+    } catch (Exception e) {
+      throw new BadRequestException("Invalid value of 'longitude' argument");
+    }
+
+    try {
+      location = new GeoPt(latitude, longitude);
+    } catch (Exception e) {
+      throw new BadRequestException("Invalid pair of 'latitude' and 'longitude' arguments");
+    }
+
+    return location;
+  }
+
+  // limit the result set to up to 100 places within up to 200 km
+  private static int limitCount(int count) throws BadRequestException {
+    if (count > 100) {
+      return 100;
+    } else if (count <= 0) {
+      throw new BadRequestException("Invalid value of 'count' argument");
+    }
+    return count;
+  }
+
+  private static long limitDistanceInKm(long distanceInKm) throws BadRequestException {
+    if (distanceInKm > 200) {
+      return 200;
+    } else if (distanceInKm < 0) {
+      throw new BadRequestException("Invalid value of 'distanceInKm' argument");
+    }
+    return distanceInKm;
+  }
+
+  private static double parseCoordinate(String value, String name, double limit)
+      throws BadRequestException {
+    double coordinate;
+    try {
+      coordinate = Double.parseDouble(value);
+    } catch (Exception e) {
+      throw new BadRequestException("Invalid value of '" + name + "' argument");
+    }
+    if (Double.isNaN(coordinate) || Math.abs(coordinate) > limit) {
+      throw new BadRequestException("Invalid value of '" + name + "' argument");
+    }
+    return coordinate;
   }
 
   private static EntityManager getEntityManager() {
@@ -0,0 +1,451 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.mobileassistant;
+
+import com.google.appengine.api.datastore.GeoPt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Immutable in-memory spatial index over Places.
+ *
+ * <p>Places are bucketed into a fixed latitude/longitude cell grid. Coordinates are held in
+ * primitive arrays ordered by cell, and each occupied cell maps to a contiguous range of those
+ * arrays, so a radius query only touches the cells overlapping the query's bounding box and
+ * then orders the matching places by their distance. Distances are computed cell by cell with
+ * the batch kernels of {@link GeoDistance}; for small radii, the equirectangular approximation
+ * with a margin for its error preselects the places that may be returned, which are then
+ * filtered and ranked by their haversine distance.
+ */
+class PlaceGridIndex implements PlaceSpatialIndex {
+  private final double cellSizeInDegrees;
+  private final int columns;
+
+  // Sorted keys of the occupied cells and, for each of them, the offset of its first place.
+  // The places of cell i are stored at [cellStart[i], cellStart[i + 1]).
+  private final long[] cellKeys;
+  private final int[] cellStart;
+
+  private final double[] latitudes;
+  private final double[] longitudes;
+  private final String[] placeIds;
+  private final String[] names;
+  private final String[] addresses;
+
+  private PlaceGridIndex(double cellSizeInDegrees, long[] cellKeys, int[] cellStart,
+      double[] latitudes, double[] longitudes, String[] placeIds, String[] names,
+      String[] addresses) {
+    this.cellSizeInDegrees = cellSizeInDegrees;
+    this.columns = columns(cellSizeInDegrees);
+    this.cellKeys = cellKeys;
+    this.cellStart = cellStart;
+    this.latitudes = latitudes;
+    this.longitudes = longitudes;
+    this.placeIds = placeIds;
+    this.names = names;
+    this.addresses = addresses;
+  }
+
+  /**
+   * Builds an index over the given places.
+   *
+   * @param places the places to be indexed. Places without a location are skipped.
+   * @param cellSizeInDegrees the size of a grid cell in degrees of latitude and longitude.
+   * @return the index.
+   */
+  static PlaceGridIndex build(List<? extends Place> places, double cellSizeInDegrees) {
+    final List<Place> located = new ArrayList<Place>(places.size());
+    for (Place place : places) {
+      if (place.getLocation() != null) {
+        located.add(place);
+      }
+    }
+
+    int size = located.size();
+    int columns = columns(cellSizeInDegrees);
+    final long[] keys = new long[size];
+    Integer[] order = new Integer[size];
+    for (int i = 0; i < size; i++) {
+      GeoPt location = located.get(i).getLocation();
+      keys[i] = cellKey(row(location.getLatitude(), cellSizeInDegrees),
+          column(location.getLongitude(), cellSizeInDegrees, columns), columns);
+      order[i] = i;
+    }
+
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        return Long.compare(keys[a], keys[b]);
+      }
+    });
+
+    long[] cellKeys = new long[size];
+    int[] cellStart = new int[size + 1];
+    double[] latitudes = new double[size];
+    double[] longitudes = new double[size];
+    String[] placeIds = new String[size];
+    String[] names = new String[size];
+    String[] addresses = new String[size];
+
+    int cells = 0;
+    for (int i = 0; i < size; i++) {
+      Place place = located.get(order[i]);
+      long key = keys[order[i]];
+
+      if (cells == 0 || cellKeys[cells - 1] != key) {
+        cellKeys[cells] = key;
+        cellStart[cells] = i;
+        cells++;
+      }
+
+      latitudes[i] = place.getLocation().getLatitude();
+      longitudes[i] = place.getLocation().getLongitude();
+      placeIds[i] = place.getPlaceId();
+      names[i] = place.getName();
+      addresses[i] = place.getAddress();
+    }
+    cellStart[cells] = size;
+
+    return new PlaceGridIndex(cellSizeInDegrees, Arrays.copyOf(cellKeys, cells),
+        Arrays.copyOf(cellStart, cells + 1), latitudes, longitudes, placeIds, names, addresses);
+  }
+
+  @Override
+  public int size() {
+    return latitudes.length;
+  }
+
+  @Override
+  public List<PlaceInfo> getPlaces(GeoPt location, long distanceInMeters, int resultCount) {
+    return find(location, distanceInMeters,
+        new Matches(location, distanceInMeters / 1000.0, true, -1, null), resultCount);
+  }
+
+  @Override
+  public List<PlaceInfo> getPlacesAfter(GeoPt location, long distanceInMeters,
+      double afterDistanceInKm, String afterPlaceId, int resultCount) {
+    // Pages must be ranked by the same exact distances they report.
+    return find(location, distanceInMeters, new Matches(
+        location, distanceInMeters / 1000.0, false, afterDistanceInKm, afterPlaceId),
+        resultCount);
+  }
+
+  private List<PlaceInfo> find(
+      GeoPt location, long distanceInMeters, Matches matches, int resultCount) {
+    double latitude = location.getLatitude();
+    double longitude = location.getLongitude();
+    double distanceInKm = distanceInMeters / 1000.0;
+
+    double latitudeDelta = distanceInKm / GeoDistance.KM_PER_DEGREE;
+    int minRow = row(Math.max(-90, latitude - latitudeDelta));
+    int maxRow = row(Math.min(90, latitude + latitudeDelta));
+
+    // Near the poles, or for very large distances, the longitude range covers the whole globe.
+    double maxAbsLatitude = Math.min(90, Math.abs(latitude) + latitudeDelta);
+    double longitudeDelta = maxAbsLatitude >= 90 ? 180
+        : latitudeDelta / Math.cos(Math.toRadians(maxAbsLatitude));
+    int minColumn;
+    int maxColumn;
+    if (longitudeDelta >= 180) {
+      minColumn = 0;
+      maxColumn = columns - 1;
+    } else {
+      minColumn = column(longitude - longitudeDelta);
+      maxColumn = column(longitude + longitudeDelta);
+    }
+    int columnSpan = maxColumn >= minColumn
+        ? maxColumn - minColumn + 1 : columns - minColumn + maxColumn + 1;
+
+    long cellsInBox = (long) (maxRow - minRow + 1) * columnSpan;
+    if (cellsInBox > cellKeys.length) {
+      // Cheaper to walk the occupied cells than to probe every cell of the bounding box.
+      for (int cell = 0; cell < cellKeys.length; cell++) {
+        int row = (int) (cellKeys[cell] / columns);
+        int column = (int) (cellKeys[cell] % columns);
+        if (row < minRow || row > maxRow || !isColumnInRange(column, minColumn, maxColumn)) {
+          continue;
+        }
+        matches.scanCell(cell);
+      }
+    } else {
+      for (int row = minRow; row <= maxRow; row++) {
+        for (int step = 0; step < columnSpan; step++) {
+          int cell = Arrays.binarySearch(cellKeys, cellKey(row, (minColumn + step) % columns));
+          if (cell < 0) {
+            continue;
+          }
+          matches.scanCell(cell);
+        }
+      }
+    }
+
+    int count = Math.min(resultCount, matches.found);
+    if (matches.approximate) {
+      count = selectClosestExactly(matches, count);
+    } else {
+      selectClosest(matches.places, matches.distances, matches.found, count);
+    }
+
+    List<PlaceInfo> places = new ArrayList<PlaceInfo>(count);
+    for (int i = 0; i < count; i++) {
+      places.add(toPlaceInfo(matches.places[i], matches.distances[i]));
+    }
+    return places;
+  }
+
+  /**
+   * Replaces the approximate distances of the matches that may be among the count closest with
+   * haversine distances, drops those beyond the radius and moves the count closest, in
+   * ascending order of haversine distance, to the front of the arrays.
+   *
+   * @return the number of matches moved to the front, at most count.
+   */
+  private int selectClosestExactly(Matches matches, int count) {
+    if (count == 0) {
+      return 0;
+    }
+    int[] places = matches.places;
+    double[] distances = matches.distances;
+    selectClosest(places, distances, matches.found, count);
+
+    // A match whose approximate distance is past the cutoff is farther than each of the first
+    // count matches, whatever the approximation error.
+    double cutoff = distances[count - 1] * (1 + matches.tolerance) * (1 + matches.tolerance);
+    int candidates = count;
+    for (int i = count; i < matches.found; i++) {
+      if (distances[i] <= cutoff) {
+        int place = places[i];
+        places[i] = places[candidates];
+        places[candidates] = place;
+        double distance = distances[i];
+        distances[i] = distances[candidates];
+        distances[candidates] = distance;
+        candidates++;
+      }
+    }
+
+    int kept = keepExactlyWithinRadius(matches, 0, candidates, 0);
+    if (kept < candidates && candidates < matches.found) {
+      // Some candidates were beyond the radius after all, so the next ones may be needed.
+      kept = keepExactlyWithinRadius(matches, candidates, matches.found, kept);
+    }
+    int selected = Math.min(count, kept);
+    selectClosest(places, distances, kept, selected);
+    return selected;
+  }
+
+  /**
+   * Computes the haversine distances of the matches at [from, to) and moves those within the
+   * radius to the positions starting at kept, which must not be after from.
+   *
+   * @return the position after the last match kept.
+   */
+  private int keepExactlyWithinRadius(Matches matches, int from, int to, int kept) {
+    for (int i = from; i < to; i++) {
+      int place = matches.places[i];
+      double distance = GeoDistance.haversineKm(
+          matches.latitude, matches.longitude, latitudes[place], longitudes[place]);
+      if (distance <= matches.maxDistanceInKm) {
+        matches.places[kept] = place;
+        matches.distances[kept] = distance;
+        kept++;
+      }
+    }
+    return kept;
+  }
+
+  /**
+   * Growable buffer of the places matching a query and their distances.
+   */
+  private class Matches {
+    final double latitude;
+    final double longitude;
+    final double maxDistanceInKm;
+    final boolean approximate;
+    // Bound on the relative error of the approximate distances within the radius, which mostly
+    // comes from taking the longitude scale at the latitude of the location.
+    final double tolerance;
+    final double scanDistanceInKm;
+
+    int[] places = new int[16];
+    double[] distances = new double[16];
+    double[] cellDistances = new double[16];
+    int found;
+
+    final double afterDistanceInKm;
+    final String afterPlaceId;
+
+    Matches(GeoPt location, double maxDistanceInKm, boolean approximateAllowed,
+        double afterDistanceInKm, String afterPlaceId) {
+      this.latitude = location.getLatitude();
+      this.longitude = location.getLongitude();
+      this.maxDistanceInKm = maxDistanceInKm;
+      this.approximate = approximateAllowed
+          && maxDistanceInKm <= GeoDistance.EQUIRECTANGULAR_MAX_DISTANCE_IN_KM;
+      double maxAbsLatitude =
+          Math.min(89, Math.abs(latitude) + maxDistanceInKm / GeoDistance.KM_PER_DEGREE);
+      this.tolerance = approximate ? 0.001 + 2 * maxDistanceInKm / GeoDistance.EARTH_RADIUS_KM
+          * Math.tan(Math.toRadians(maxAbsLatitude)) : 0;
+      // Approximate distances are compared with a padded radius and checked exactly later.
+      this.scanDistanceInKm = maxDistanceInKm * (1 + tolerance);
+      this.afterDistanceInKm = afterDistanceInKm;
+      this.afterPlaceId = afterPlaceId;
+    }
+
+    boolean isAfterCursor(int place, double distance) {
+      if (distance != afterDistanceInKm) {
+        return distance > afterDistanceInKm;
+      }
+      return afterPlaceId == null
+          || (placeIds[place] != null && placeIds[place].compareTo(afterPlaceId) > 0);
+    }
+
+    void scanCell(int cell) {
+      int from = cellStart[cell];
+      int to = cellStart[cell + 1];
+      if (cellDistances.length < to - from) {
+        cellDistances = new double[to - from];
+      }
+
+      if (approximate) {
+        GeoDistance.equirectangularKm(
+            latitude, longitude, latitudes, longitudes, from, to, cellDistances);
+      } else {
+        GeoDistance.haversineKm(latitude, longitude, latitudes, longitudes, from, to,
+            cellDistances);
+      }
+
+      for (int i = from; i < to; i++) {
+        double distance = cellDistances[i - from];
+        if (distance <= scanDistanceInKm && isAfterCursor(i, distance)) {
+          if (found == places.length) {
+            places = Arrays.copyOf(places, found * 2);
+            distances = Arrays.copyOf(distances, found * 2);
+          }
+          places[found] = i;
+          distances[found] = distance;
+          found++;
+        }
+      }
+    }
+  }
+
+  private PlaceInfo toPlaceInfo(int i, double distanceInKm) {
+    PlaceInfo place = new PlaceInfo();
+    place.setplaceID(placeIds[i]);
+    place.setName(names[i]);
+    place.setAddress(addresses[i]);
+    place.setLocation(new GeoPt((float) latitudes[i], (float) longitudes[i]));
+    place.setDistanceInKilometers(distanceInKm);
+    return place;
+  }
+
+  /**
+   * Moves the count closest matches, in ascending order of distance, to the front of the arrays,
+   * and the others after them. Ties are broken by place id so that the ordering is
+   * deterministic.
+   */
+  private void selectClosest(int[] matches, double[] distances, int found, int count) {
+    // Partial selection sort is cheapest for the small counts used by clients; fall back to a
+    // full sort when a large share of the matches is requested.
+    if (count > 32 && count > found / 8) {
+      Integer[] order = new Integer[found];
+      for (int i = 0; i < found; i++) {
+        order[i] = i;
+      }
+      final int[] m = matches;
+      final double[] d = distances;
+      Arrays.sort(order, new Comparator<Integer>() {
+        @Override
+        public int compare(Integer a, Integer b) {
+          return compareMatches(d[a], m[a], d[b], m[b]);
+        }
+      });
+      // The matches after count are kept as well, for callers that look past them.
+      int[] sortedMatches = new int[found];
+      double[] sortedDistances = new double[found];
+      for (int i = 0; i < found; i++) {
+        sortedMatches[i] = matches[order[i]];
+        sortedDistances[i] = distances[order[i]];
+      }
+      System.arraycopy(sortedMatches, 0, matches, 0, found);
+      System.arraycopy(sortedDistances, 0, distances, 0, found);
+      return;
+    }
+
+    for (int i = 0; i < count; i++) {
+      int best = i;
+      for (int j = i + 1; j < found; j++) {
+        if (compareMatches(distances[j], matches[j], distances[best], matches[best]) < 0) {
+          best = j;
+        }
+      }
+      int match = matches[i];
+      matches[i] = matches[best];
+      matches[best] = match;
+      double distance = distances[i];
+      distances[i] = distances[best];
+      distances[best] = distance;
+    }
+  }
+
+  private int compareMatches(double distance1, int place1, double distance2, int place2) {
+    int result = Double.compare(distance1, distance2);
+    if (result == 0 && placeIds[place1] != null && placeIds[place2] != null) {
+      result = placeIds[place1].compareTo(placeIds[place2]);
+    }
+    return result;
+  }
+
+  private static boolean isColumnInRange(int column, int minColumn, int maxColumn) {
+    if (minColumn <= maxColumn) {
+      return column >= minColumn && column <= maxColumn;
+    }
+    // the range wraps around the antimeridian
+    return column >= minColumn || column <= maxColumn;
+  }
+
+  private int row(double latitude) {
+    return row(latitude, cellSizeInDegrees);
+  }
+
+  private int column(double longitude) {
+    return column(longitude, cellSizeInDegrees, columns);
+  }
+
+  private long cellKey(int row, int column) {
+    return cellKey(row, column, columns);
+  }
+
+  private static int columns(double cellSizeInDegrees) {
+    return (int) Math.ceil(360 / cellSizeInDegrees);
+  }
+
+  private static int row(double latitude, double cellSizeInDegrees) {
+    return (int) Math.floor((latitude + 90) / cellSizeInDegrees);
+  }
+
+  private static int column(double longitude, double cellSizeInDegrees, int columns) {
+    double normalized = ((longitude + 180) % 360 + 360) % 360;
+    return (int) Math.floor(normalized / cellSizeInDegrees) % columns;
+  }
+
+  private static long cellKey(int row, int column, int columns) {
+    return (long) row * columns + column;
+  }
+}
@@ -0,0 +1,160 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.mobileassistant;
+
+import static com.google.appengine.api.taskqueue.TaskOptions.Builder.withUrl;
+
+import com.google.appengine.api.search.DeleteException;
+import com.google.appengine.api.search.Document;
+import com.google.appengine.api.search.GetRequest;
+import com.google.appengine.api.search.Index;
+import com.google.appengine.api.search.IndexSpec;
+import com.google.appengine.api.search.SearchServiceFactory;
+import com.google.appengine.api.taskqueue.QueueFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+/**
+ * Deletes every document of a search index.
+ *
+ * <p>Document ids are read a page at a time, each page starting after the last id of the
+ * previous one. Each page is deleted with one asynchronous call of the largest size the Search
+ * API accepts while the next pages are read, with up to {@link #MAX_PENDING_DELETES} calls in
+ * flight. A call that fails is repeated synchronously, retrying the documents that had a
+ * transient error.
+ *
+ * <p>Indexes are only purged by a task that adds itself again until the index is empty; see
+ * {@link #schedule(String)}. The task refuses, or stops purging, an index that is a version in
+ * use.
+ */
+class PlaceIndexPurge {
+  private static final Logger log = Logger.getLogger(PlaceIndexPurge.class.getName());
+
+  static final String PURGE_URL = "/tasks/placeindexpurge";
+
+  private static final int MAX_PENDING_DELETES = 10;
+  // Leaves time to wait for the pending deletes and add the next task before the deadline of
+  // a task request.
+  private static final long TASK_TIME_LIMIT_IN_MILLIS = 8 * 60 * 1000;
+
+  /**
+   * A delete call in flight and the ids it deletes.
+   */
+  private static class PendingDelete {
+    final Future<Void> future;
+    final List<String> ids;
+
+    PendingDelete(Future<Void> future, List<String> ids) {
+      this.future = future;
+      this.ids = ids;
+    }
+  }
+
+  /**
+   * Deletes the documents of an index until it is empty or a deadline has passed.
+   *
+   * @param deadline the time in milliseconds since the epoch after which no more pages are read.
+   * @return the number of documents deleted.
+   */
+  static long purge(Index index, long deadline) {
+    long start = System.currentTimeMillis();
+    long deleted = 0;
+
+    LinkedList<PendingDelete> pending = new LinkedList<PendingDelete>();
+    GetRequest.Builder request = GetRequest.newBuilder()
+        .setReturningIdsOnly(true)
+        .setLimit(SearchApiPlaceSearchBackend.MAX_DOCUMENTS_PER_CALL);
+    while (System.currentTimeMillis() < deadline) {
+      List<String> ids = new ArrayList<String>();
+      for (Document document : index.getRange(request.build())) {
+        ids.add(document.getId());
+      }
+      if (ids.isEmpty()) {
+        break;
+      }
+      if (pending.size() == MAX_PENDING_DELETES) {
+        await(index, pending.removeFirst());
+      }
+      pending.add(new PendingDelete(index.deleteAsync(ids), ids));
+      deleted += ids.size();
+      if (ids.size() < SearchApiPlaceSearchBackend.MAX_DOCUMENTS_PER_CALL) {
+        break;
+      }
+      request.setStartId(ids.get(ids.size() - 1)).setIncludeStart(false);
+    }
+    while (!pending.isEmpty()) {
+      await(index, pending.removeFirst());
+    }
+
+    long millis = System.currentTimeMillis() - start;
+    PlaceMetrics.add("index.delete.documents", deleted);
+    PlaceMetrics.add("index.delete.millis", millis);
+    log.info("Deleted " + deleted + " documents from " + index.getName() + " in " + millis
+        + " ms (" + deleted * 1000 / Math.max(1, millis) + " documents/s)");
+    return deleted;
+  }
+
+  private static void await(Index index, PendingDelete delete) {
+    try {
+      delete.future.get();
+    } catch (DeleteException e) {
+      SearchApiPlaceSearchBackend.deleteBatch(index, delete.ids);
+    } catch (ExecutionException e) {
+      if (!(e.getCause() instanceof DeleteException)) {
+        throw new RuntimeException(e.getCause());
+      }
+      SearchApiPlaceSearchBackend.deleteBatch(index, delete.ids);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Adds a task that purges an index.
+   *
+   * @param indexName the name of the index.
+   */
+  static void schedule(String indexName) {
+    QueueFactory.getQueue(PlaceIndexRebuild.QUEUE).add(withUrl(PURGE_URL)
+        .param("index", indexName));
+  }
+
+  /**
+   * Purges an index for at most {@link #TASK_TIME_LIMIT_IN_MILLIS}, and adds a task to go on
+   * if it may not be empty yet.
+   *
+   * @return the number of documents deleted.
+   */
+  static long runTask(String indexName) {
+    if (PlacesIndexVersions.isInUse(indexName)) {
+      log.warning("Not purging " + indexName + ", which is a version of the index in use");
+      return 0;
+    }
+    Index index = SearchServiceFactory.getSearchService().getIndex(
+        IndexSpec.newBuilder().setName(indexName).build());
+    long deadline = System.currentTimeMillis() + TASK_TIME_LIMIT_IN_MILLIS;
+    long deleted = purge(index, deadline);
+    if (System.currentTimeMillis() >= deadline) {
+      schedule(indexName);
+    }
+    return deleted;
+  }
+}
@@ -0,0 +1,45 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.mobileassistant;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * HttpServlet for processing tasks that delete every document of a search index.
+ *
+ * @see PlaceIndexPurge
+ */
+public class PlaceIndexPurgeTaskServlet extends HttpServlet {
+  private static final long serialVersionUID = 1L;
+
+  private static final Logger log = Logger.getLogger(PlaceIndexPurgeTaskServlet.class.getName());
+
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    String indexName = req.getParameter("index");
+    if (indexName == null) {
+      log.warning("Missing index parameter");
+      return;
+    }
+
+    // Let Task Queue handle any exceptions through normal retry logic and error logging.
+    PlaceIndexPurge.runTask(indexName);
+  }
+}
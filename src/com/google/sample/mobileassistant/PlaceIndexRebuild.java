@@ -0,0 +1,542 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.mobileassistant;
+
+import static com.google.appengine.api.taskqueue.TaskOptions.Builder.withUrl;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.GeoPt;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.Filter;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskOptions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Rebuilds the search index from the Place entities in parallel shards.
+ *
+ * <p>{@link #start()} cuts the key range of the places into shards at a sample of the keys,
+ * read from the {@code __scatter__} property that the datastore sets on a random subset of the
+ * entities, so that starting a rebuild costs a single query whatever the number of places. Each
+ * range is indexed by its own task on {@link #QUEUE}, so that the rebuild takes about as long
+ * as the queue needs to run all shards with its concurrency, rather than having to fit in a
+ * single request. A rebuild entity keeps the number of shards and completed shards, and each
+ * shard leaves a completion marker as a child of it; the shard that completes the rebuild adds
+ * a task that switches the index to the rebuilt version.
+ *
+ * <p>After each batch, a shard saves the query cursor it has reached in a checkpoint entity.
+ * A shard task that fails is retried by the queue and resumes from its checkpoint, so a
+ * transient error only costs the batch it interrupted, and a shard that runs out of time adds
+ * a task that resumes from it. The checkpoints also record the failures, and give the progress
+ * reported by {@link #getStatus()}.
+ *
+ * <p>Once the index is switched, the nearest places table is built by a chain of tasks, each
+ * adding the cells of the places it reads from a query cursor until its time is up.
+ *
+ * <p>Places are read with the low-level datastore API, which gives direct control over the
+ * query cursors.
+ */
+class PlaceIndexRebuild {
+  private static final Logger log = Logger.getLogger(PlaceIndexRebuild.class.getName());
+
+  static final String QUEUE = "places-rebuild-queue";
+  static final String SHARD_URL = "/tasks/placeindexrebuild/shard";
+  static final String FINISH_URL = "/tasks/placeindexrebuild/finish";
+  static final String NEAREST_PLACES_URL = "/tasks/placeindexrebuild/nearestplaces";
+
+  static final int MAX_SHARDS = 100;
+  // Scatter samples read per shard, so that the shards are of similar sizes.
+  private static final int SAMPLES_PER_SHARD = 32;
+  // The number of places read and indexed at a time by a shard.
+  private static final int BATCH_SIZE = 200;
+  // The maximum number of tasks a single Queue.add call can take.
+  private static final int MAX_TASKS_PER_CALL = 100;
+  private static final int MAX_COMPLETION_ATTEMPTS = 5;
+  // Leaves time to save the checkpoint and add the next task before the deadline of a task
+  // request.
+  private static final long TASK_TIME_LIMIT_IN_MILLIS = 8 * 60 * 1000;
+
+  static final String PLACE_KIND = "Place";
+  private static final String REBUILD_KIND = "PlaceIndexRebuild";
+  private static final String SHARD_KIND = "PlaceIndexRebuildShard";
+  // Checkpoints are root entities, so that shards do not contend for the rebuild entity group.
+  private static final String CHECKPOINT_KIND = "PlaceIndexRebuildCheckpoint";
+  private static final String VERSION_PROPERTY = "version";
+  private static final String SHARDS_PROPERTY = "shards";
+  private static final String COMPLETED_SHARDS_PROPERTY = "completedShards";
+  private static final String PLACES_PROPERTY = "places";
+  private static final String TOTAL_PLACES_PROPERTY = "totalPlaces";
+  private static final String CURSOR_PROPERTY = "cursor";
+  private static final String FAILURES_PROPERTY = "failures";
+  private static final String LAST_ERROR_PROPERTY = "lastError";
+  private static final String UPDATE_TIME_PROPERTY = "updateTime";
+  private static final String START_TIME_PROPERTY = "startTime";
+  private static final String SWITCH_TIME_PROPERTY = "switchTime";
+  private static final String FINISH_TIME_PROPERTY = "finishTime";
+  private static final String NEAREST_PLACES_VERSION_PROPERTY = "nearestPlacesVersion";
+
+  /**
+   * Starts a rebuild into a new version of the index and adds the tasks of its shards.
+   *
+   * @return the number of shards.
+   */
+  static int start() {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+
+    List<Key> samples = new ArrayList<Key>();
+    for (Entity entity : datastore.prepare(new Query(PLACE_KIND)
+        .addSort(Entity.SCATTER_RESERVED_PROPERTY, SortDirection.ASCENDING)
+        .setKeysOnly()).asIterable(FetchOptions.Builder.withLimit(
+            MAX_SHARDS * SAMPLES_PER_SHARD).chunkSize(MAX_SHARDS * SAMPLES_PER_SHARD))) {
+      samples.add(entity.getKey());
+    }
+    Collections.sort(samples);
+    int shards = Math.max(1, Math.min(MAX_SHARDS, samples.size() / SAMPLES_PER_SHARD));
+    // The first shard starts before the first place and the last one ends after the last place.
+    List<Key> boundaries = new ArrayList<Key>();
+    boundaries.add(null);
+    for (int shard = 1; shard < shards; shard++) {
+      boundaries.add(samples.get(shard * samples.size() / shards));
+    }
+    long totalPlaces = estimatePlaceCount(datastore);
+
+    long version = PlacesHelper.getBackend().beginRebuild();
+    Key rebuildKey = datastore.allocateIds(REBUILD_KIND, 1).getStart();
+    Entity rebuild = new Entity(rebuildKey);
+    rebuild.setUnindexedProperty(VERSION_PROPERTY, version);
+    rebuild.setUnindexedProperty(SHARDS_PROPERTY, (long) shards);
+    rebuild.setUnindexedProperty(COMPLETED_SHARDS_PROPERTY, 0L);
+    rebuild.setUnindexedProperty(PLACES_PROPERTY, 0L);
+    rebuild.setUnindexedProperty(TOTAL_PLACES_PROPERTY, totalPlaces);
+    rebuild.setProperty(START_TIME_PROPERTY, new Date());
+    datastore.put(rebuild);
+
+    Queue queue = QueueFactory.getQueue(QUEUE);
+    List<TaskOptions> tasks = new ArrayList<TaskOptions>();
+    for (int shard = 0; shard < shards; shard++) {
+      tasks.add(getShardTask(rebuildKey.getId(), shard, boundaries.get(shard),
+          shard + 1 < shards ? boundaries.get(shard + 1) : null));
+      if (tasks.size() == MAX_TASKS_PER_CALL) {
+        queue.add(tasks);
+        tasks.clear();
+      }
+    }
+    if (!tasks.isEmpty()) {
+      queue.add(tasks);
+    }
+
+    log.info("Started rebuild " + rebuildKey.getId() + " of the search index into version "
+        + version + " with " + shards + " shards");
+    return shards;
+  }
+
+  private static TaskOptions getShardTask(long rebuildId, int shard, Key startKey, Key endKey) {
+    TaskOptions task = withUrl(SHARD_URL)
+        .param("rebuild", Long.toString(rebuildId))
+        .param("shard", Integer.toString(shard));
+    if (startKey != null) {
+      task.param("startKey", KeyFactory.keyToString(startKey));
+    }
+    if (endKey != null) {
+      task.param("endKey", KeyFactory.keyToString(endKey));
+    }
+    return task;
+  }
+
+  /**
+   * @return the number of places in the latest datastore statistics, or -1 if there are none.
+   */
+  private static long estimatePlaceCount(DatastoreService datastore) {
+    Entity stat = datastore.prepare(new Query("__Stat_Kind__").setFilter(
+        new FilterPredicate("kind_name", FilterOperator.EQUAL, PLACE_KIND))).asSingleEntity();
+    return stat == null ? -1 : ((Number) stat.getProperty("count")).longValue();
+  }
+
+  /**
+   * Indexes the places of one shard into the version being rebuilt, one batch at a time from
+   * its last checkpoint, and records the completion of the shard. A shard that has already
+   * completed is skipped, and one still running after {@link #TASK_TIME_LIMIT_IN_MILLIS} adds a
+   * task that resumes it.
+   *
+   * @param startKey the lowest key of the shard, or null for the first shard.
+   * @param endKey the lowest key of the next shard, or null for the last shard.
+   */
+  static void runShard(long rebuildId, int shard, Key startKey, Key endKey) {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    Key rebuildKey = KeyFactory.createKey(REBUILD_KIND, rebuildId);
+    Key shardKey = KeyFactory.createKey(rebuildKey, SHARD_KIND, shard + 1);
+    Entity rebuild = getOrNull(datastore, rebuildKey);
+    if (rebuild == null) {
+      log.warning("Rebuild " + rebuildId + " does not exist");
+      return;
+    }
+    if (getOrNull(datastore, shardKey) != null) {
+      log.info("Shard " + shard + " of rebuild " + rebuildId + " has already completed");
+      return;
+    }
+    long version = (Long) rebuild.getProperty(VERSION_PROPERTY);
+
+    List<Filter> range = new ArrayList<Filter>();
+    if (startKey != null) {
+      range.add(new FilterPredicate(
+          Entity.KEY_RESERVED_PROPERTY, FilterOperator.GREATER_THAN_OR_EQUAL, startKey));
+    }
+    if (endKey != null) {
+      range.add(new FilterPredicate(
+          Entity.KEY_RESERVED_PROPERTY, FilterOperator.LESS_THAN, endKey));
+    }
+    Query placeQuery = new Query(PLACE_KIND)
+        .addSort(Entity.KEY_RESERVED_PROPERTY, SortDirection.ASCENDING);
+    if (range.size() == 1) {
+      placeQuery.setFilter(range.get(0));
+    } else if (range.size() == 2) {
+      placeQuery.setFilter(CompositeFilterOperator.and(range));
+    }
+    PreparedQuery query = datastore.prepare(placeQuery);
+
+    Entity checkpoint = getOrNull(datastore, getCheckpointKey(rebuildId, shard));
+    long count = 0;
+    Cursor cursor = null;
+    if (checkpoint == null) {
+      checkpoint = new Entity(getCheckpointKey(rebuildId, shard));
+      checkpoint.setUnindexedProperty(PLACES_PROPERTY, 0L);
+      checkpoint.setUnindexedProperty(FAILURES_PROPERTY, 0L);
+    } else {
+      count = (Long) checkpoint.getProperty(PLACES_PROPERTY);
+      Text savedCursor = (Text) checkpoint.getProperty(CURSOR_PROPERTY);
+      if (savedCursor != null) {
+        cursor = Cursor.fromWebSafeString(savedCursor.getValue());
+        log.info("Resuming shard " + shard + " of rebuild " + rebuildId + " after " + count
+            + " places");
+      }
+    }
+
+    PlaceSearchBackend backend = PlacesHelper.getBackend();
+    long start = System.currentTimeMillis();
+    long deadline = start + TASK_TIME_LIMIT_IN_MILLIS;
+    long resumedCount = count;
+    boolean done = false;
+    while (!done) {
+      if (System.currentTimeMillis() >= deadline) {
+        QueueFactory.getQueue(QUEUE).add(getShardTask(rebuildId, shard, startKey, endKey));
+        log.info("Indexed " + (count - resumedCount) + " places of shard " + shard
+            + " of rebuild " + rebuildId + " before its time was up; it goes on in a new task");
+        return;
+      }
+      FetchOptions options = FetchOptions.Builder.withLimit(BATCH_SIZE);
+      if (cursor != null) {
+        options.startCursor(cursor);
+      }
+      try {
+        QueryResultList<Entity> batch = query.asQueryResultList(options);
+        List<Place> places = new ArrayList<Place>(batch.size());
+        for (Entity entity : batch) {
+          Place place = toPlace(entity);
+          if (place.getLocation() != null) {
+            places.add(place);
+          }
+        }
+        backend.putRebuiltPlaces(version, places);
+        count += batch.size();
+        done = batch.size() < BATCH_SIZE;
+        cursor = batch.getCursor();
+      } catch (RuntimeException e) {
+        // Recorded for the status page; the queue retries the task from the last checkpoint.
+        checkpoint.setUnindexedProperty(
+            FAILURES_PROPERTY, (Long) checkpoint.getProperty(FAILURES_PROPERTY) + 1);
+        checkpoint.setUnindexedProperty(LAST_ERROR_PROPERTY, new Text(e.toString()));
+        checkpoint.setUnindexedProperty(UPDATE_TIME_PROPERTY, new Date());
+        datastore.put(checkpoint);
+        throw e;
+      }
+
+      checkpoint.setUnindexedProperty(CURSOR_PROPERTY, new Text(cursor.toWebSafeString()));
+      checkpoint.setUnindexedProperty(PLACES_PROPERTY, count);
+      checkpoint.setUnindexedProperty(UPDATE_TIME_PROPERTY, new Date());
+      datastore.put(checkpoint);
+    }
+    log.info("Indexed " + (count - resumedCount) + " places of shard " + shard + " of rebuild "
+        + rebuildId + " in " + (System.currentTimeMillis() - start) + " ms");
+
+    completeShard(datastore, rebuildKey, shardKey, count);
+  }
+
+  /**
+   * Records the completion of a shard and, if it is the last one, adds the task that finishes
+   * the rebuild, in a single transaction.
+   */
+  private static void completeShard(
+      DatastoreService datastore, Key rebuildKey, Key shardKey, long count) {
+    for (int attempt = 1; ; attempt++) {
+      Transaction txn = datastore.beginTransaction();
+      try {
+        Entity rebuild = datastore.get(txn, rebuildKey);
+        if (getOrNull(datastore, txn, shardKey) != null) {
+          return;
+        }
+        Entity marker = new Entity(shardKey);
+        marker.setUnindexedProperty(PLACES_PROPERTY, count);
+        marker.setUnindexedProperty(FINISH_TIME_PROPERTY, new Date());
+        long completed = (Long) rebuild.getProperty(COMPLETED_SHARDS_PROPERTY) + 1;
+        rebuild.setUnindexedProperty(COMPLETED_SHARDS_PROPERTY, completed);
+        rebuild.setUnindexedProperty(
+            PLACES_PROPERTY, (Long) rebuild.getProperty(PLACES_PROPERTY) + count);
+        datastore.put(txn, Arrays.asList(rebuild, marker));
+        if (completed == (Long) rebuild.getProperty(SHARDS_PROPERTY)) {
+          QueueFactory.getQueue(QUEUE).add(txn,
+              withUrl(FINISH_URL).param("rebuild", Long.toString(rebuildKey.getId())));
+        }
+        txn.commit();
+        return;
+      } catch (EntityNotFoundException e) {
+        throw new IllegalStateException("Rebuild " + rebuildKey.getId() + " was deleted", e);
+      } catch (ConcurrentModificationException e) {
+        // other shards completing at the same time
+        if (attempt == MAX_COMPLETION_ATTEMPTS) {
+          throw e;
+        }
+      } finally {
+        if (txn.isActive()) {
+          txn.rollback();
+        }
+      }
+    }
+  }
+
+  /**
+   * Switches the index to the rebuilt version once all shards have completed, and starts
+   * building the nearest places table from the rebuilt index. Safe to retry.
+   */
+  static void finish(long rebuildId) {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    Entity rebuild = getOrNull(datastore, KeyFactory.createKey(REBUILD_KIND, rebuildId));
+    if (rebuild == null || rebuild.getProperty(FINISH_TIME_PROPERTY) != null) {
+      return;
+    }
+    long version = (Long) rebuild.getProperty(VERSION_PROPERTY);
+
+    if (rebuild.getProperty(SWITCH_TIME_PROPERTY) == null) {
+      try {
+        PlacesHelper.getBackend().finishRebuild(version);
+      } catch (IllegalStateException e) {
+        log.warning("Rebuild " + rebuildId + " was superseded by a later one: " + e.getMessage());
+        return;
+      }
+      rebuild.setUnindexedProperty(SWITCH_TIME_PROPERTY, new Date());
+      datastore.put(rebuild);
+      log.info("Rebuild " + rebuildId + " switched the search index to version " + version
+          + " with " + rebuild.getProperty(PLACES_PROPERTY) + " places");
+    }
+
+    PlacesCache.invalidate();
+
+    if (rebuild.getProperty(NEAREST_PLACES_VERSION_PROPERTY) == null) {
+      rebuild.setUnindexedProperty(NEAREST_PLACES_VERSION_PROPERTY, System.currentTimeMillis());
+      datastore.put(rebuild);
+    }
+    addNearestPlacesTask(rebuildId, 0, null);
+  }
+
+  /**
+   * Adds the cells of the places read from a cursor to the nearest places table being built
+   * after a rebuild, until the places are exhausted or the time of a task is up, and then
+   * either adds the task of the next step or activates the table and finishes the rebuild.
+   * Safe to retry.
+   *
+   * @param step the number of the step, which names its task.
+   * @param cursor where the previous step stopped reading places, or null for the first step.
+   */
+  static void buildNearestPlaces(long rebuildId, int step, Cursor cursor) {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    Entity rebuild = getOrNull(datastore, KeyFactory.createKey(REBUILD_KIND, rebuildId));
+    if (rebuild == null || rebuild.getProperty(FINISH_TIME_PROPERTY) != null) {
+      return;
+    }
+    // The time the build started, from which changed places are carried over.
+    long version = (Long) rebuild.getProperty(NEAREST_PLACES_VERSION_PROPERTY);
+
+    PreparedQuery query = datastore.prepare(new Query(PLACE_KIND)
+        .addSort(Entity.KEY_RESERVED_PROPERTY, SortDirection.ASCENDING));
+    PlaceSearchBackend backend = PlacesHelper.getBackend();
+    long deadline = System.currentTimeMillis() + TASK_TIME_LIMIT_IN_MILLIS;
+    int cells = 0;
+    boolean done = false;
+    while (!done && System.currentTimeMillis() < deadline) {
+      FetchOptions options = FetchOptions.Builder.withLimit(BATCH_SIZE);
+      if (cursor != null) {
+        options.startCursor(cursor);
+      }
+      QueryResultList<Entity> batch = query.asQueryResultList(options);
+      List<Place> places = new ArrayList<Place>(batch.size());
+      for (Entity entity : batch) {
+        places.add(toPlace(entity));
+      }
+      cells += NearestPlacesTable.putCells(version, places, backend);
+      done = batch.size() < BATCH_SIZE;
+      cursor = batch.getCursor();
+    }
+    log.info("Added " + cells + " cells to the nearest places table version " + version
+        + " in step " + step + " of rebuild " + rebuildId);
+
+    if (!done) {
+      addNearestPlacesTask(rebuildId, step + 1, cursor);
+      return;
+    }
+    NearestPlacesTable.activate(version, version);
+    rebuild.setUnindexedProperty(FINISH_TIME_PROPERTY, new Date());
+    datastore.put(rebuild);
+  }
+
+  /**
+   * Adds the task of a step of building the nearest places table, unless it was already added
+   * by an earlier attempt of the task adding it.
+   */
+  private static void addNearestPlacesTask(long rebuildId, int step, Cursor cursor) {
+    TaskOptions task = withUrl(NEAREST_PLACES_URL)
+        .taskName("nearestplaces-" + rebuildId + "-" + step)
+        .param("rebuild", Long.toString(rebuildId))
+        .param("step", Integer.toString(step));
+    if (cursor != null) {
+      task.param("cursor", cursor.toWebSafeString());
+    }
+    try {
+      QueueFactory.getQueue(QUEUE).add(task);
+    } catch (TaskAlreadyExistsException e) {
+      log.info("Step " + step + " of the nearest places table of rebuild " + rebuildId
+          + " was already added");
+    }
+  }
+
+  /**
+   * Reports the progress of the latest rebuild: the places processed out of those in the
+   * datastore statistics when it started, the indexing rate, the estimated time left and the
+   * failed batches.
+   *
+   * @return the status values by name, or an empty map if no rebuild has been started.
+   */
+  static Map<String, Object> getStatus() {
+    Map<String, Object> status = new LinkedHashMap<String, Object>();
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    List<Entity> latest = datastore.prepare(new Query(REBUILD_KIND)
+        .addSort(START_TIME_PROPERTY, SortDirection.DESCENDING))
+        .asList(FetchOptions.Builder.withLimit(1));
+    if (latest.isEmpty()) {
+      return status;
+    }
+    Entity rebuild = latest.get(0);
+    long rebuildId = rebuild.getKey().getId();
+    long shards = (Long) rebuild.getProperty(SHARDS_PROPERTY);
+
+    List<Key> checkpointKeys = new ArrayList<Key>();
+    for (int shard = 0; shard < shards; shard++) {
+      checkpointKeys.add(getCheckpointKey(rebuildId, shard));
+    }
+    long processed = 0;
+    long failures = 0;
+    Entity lastFailed = null;
+    for (Entity checkpoint : datastore.get(checkpointKeys).values()) {
+      processed += (Long) checkpoint.getProperty(PLACES_PROPERTY);
+      failures += (Long) checkpoint.getProperty(FAILURES_PROPERTY);
+      if (checkpoint.getProperty(LAST_ERROR_PROPERTY) != null && (lastFailed == null
+          || getUpdateTime(checkpoint).after(getUpdateTime(lastFailed)))) {
+        lastFailed = checkpoint;
+      }
+    }
+
+    long total = (Long) rebuild.getProperty(TOTAL_PLACES_PROPERTY);
+    Date startTime = (Date) rebuild.getProperty(START_TIME_PROPERTY);
+    Date switchTime = (Date) rebuild.getProperty(SWITCH_TIME_PROPERTY);
+    long elapsedMillis = Math.max(1, (switchTime != null ? switchTime : new Date()).getTime()
+        - startTime.getTime());
+    double rate = processed * 1000.0 / elapsedMillis;
+
+    status.put("rebuild", rebuildId);
+    status.put("version", rebuild.getProperty(VERSION_PROPERTY));
+    status.put("state", rebuild.getProperty(FINISH_TIME_PROPERTY) != null ? "finished"
+        : switchTime != null ? "building the nearest places table" : "indexing");
+    status.put("started", startTime);
+    status.put("shards", rebuild.getProperty(COMPLETED_SHARDS_PROPERTY) + "/" + shards);
+    status.put("processed", total >= 0 ? processed + "/~" + total : Long.toString(processed));
+    status.put("rate", Math.round(rate) + " places/s");
+    if (switchTime == null) {
+      status.put("eta", rate > 0 && total >= 0
+          ? Math.round(Math.max(0, total - processed) / rate) + " s" : "unknown");
+    }
+    status.put("failures", failures);
+    if (lastFailed != null) {
+      status.put("lastError", getUpdateTime(lastFailed) + " "
+          + ((Text) lastFailed.getProperty(LAST_ERROR_PROPERTY)).getValue());
+    }
+    return status;
+  }
+
+  private static Key getCheckpointKey(long rebuildId, int shard) {
+    return KeyFactory.createKey(CHECKPOINT_KIND, rebuildId + ":" + shard);
+  }
+
+  private static Date getUpdateTime(Entity checkpoint) {
+    return (Date) checkpoint.getProperty(UPDATE_TIME_PROPERTY);
+  }
+
+  /**
+   * @return the indexed fields of a Place entity read with the low-level datastore API.
+   */
+  static Place toPlace(Entity entity) {
+    Place place = new Place();
+    place.setplaceID((String) entity.getProperty("placeId"));
+    place.setName((String) entity.getProperty("name"));
+    place.setAddress((String) entity.getProperty("address"));
+    place.setLocation((GeoPt) entity.getProperty("location"));
+    return place;
+  }
+
+  private static Entity getOrNull(DatastoreService datastore, Key key) {
+    return getOrNull(datastore, null, key);
+  }
+
+  private static Entity getOrNull(DatastoreService datastore, Transaction txn, Key key) {
+    try {
+      return datastore.get(txn, key);
+    } catch (EntityNotFoundException e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,64 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.mobileassistant;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.KeyFactory;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * HttpServlet for processing the shard, finish and nearest places tasks of a search index
+ * rebuild.
+ *
+ * @see PlaceIndexRebuild
+ */
+public class PlaceIndexRebuildTaskServlet extends HttpServlet {
+  private static final long serialVersionUID = 1L;
+
+  private static final Logger log =
+      Logger.getLogger(PlaceIndexRebuildTaskServlet.class.getName());
+
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    String rebuild = req.getParameter("rebuild");
+    if (rebuild == null) {
+      log.warning("Missing rebuild parameter");
+      return;
+    }
+
+    // Let Task Queue handle any exceptions through normal retry logic and error logging.
+    if (PlaceIndexRebuild.SHARD_URL.equals(req.getServletPath())) {
+      String startKey = req.getParameter("startKey");
+      String endKey = req.getParameter("endKey");
+      PlaceIndexRebuild.runShard(Long.parseLong(rebuild),
+          Integer.parseInt(req.getParameter("shard")),
+          startKey == null ? null : KeyFactory.stringToKey(startKey),
+          endKey == null ? null : KeyFactory.stringToKey(endKey));
+    } else if (PlaceIndexRebuild.NEAREST_PLACES_URL.equals(req.getServletPath())) {
+      String cursor = req.getParameter("cursor");
+      PlaceIndexRebuild.buildNearestPlaces(Long.parseLong(rebuild),
+          Integer.parseInt(req.getParameter("step")),
+          cursor == null ? null : Cursor.fromWebSafeString(cursor));
+    } else {
+      PlaceIndexRebuild.finish(Long.parseLong(rebuild));
+    }
+  }
+}
@@ -0,0 +1,213 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.mobileassistant;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.appengine.api.search.Document;
+import com.google.appengine.api.search.GetRequest;
+import com.google.appengine.api.search.Index;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Brings the search index in line with the Place entities, writing only the documents that
+ * differ.
+ *
+ * <p>Place entities are read in the order of their place ids, and documents in the order of
+ * their ids, which are the place ids, so that the two are merge-joined in a single pass with
+ * a bounded amount of memory. A place without a document, or whose document has a different
+ * {@link SearchApiPlaceSearchBackend#getContentHash content hash}, is put; a document without a
+ * place is removed. Reading the index costs much less quota than rewriting all of it.
+ *
+ * <p>Places whose ids are not valid document ids have {@link
+ * SearchApiPlaceSearchBackend#getDocumentId encoded} document ids, which sort after all the
+ * others. Those places are set aside in memory and joined at the end.
+ */
+class PlaceIndexReconciler {
+  // The number of places or documents read, put or removed at a time.
+  private static final int BATCH_SIZE = 200;
+
+  private final SearchApiPlaceSearchBackend backend;
+  private final Index index;
+
+  // Places with encoded document ids, by document id.
+  private final SortedMap<String, Place> encodedPlaces = new TreeMap<String, Place>();
+  private Iterator<Place> encodedPlaceIterator;
+  private final List<Place> placesToPut = new ArrayList<Place>();
+  private final List<String> documentIdsToRemove = new ArrayList<String>();
+  private final List<String> removedPlaceIds = new ArrayList<String>();
+
+  private List<Document> documentPage = new ArrayList<Document>();
+  private int documentPageIndex;
+  private boolean lastDocumentPage;
+  private String lastDocumentId;
+  private String lastPlaceId;
+
+  long unchangedCount;
+  long putCount;
+  long removedCount;
+
+  /**
+   * @param backend writes the places that differ.
+   * @param index the index whose documents are compared with the places.
+   */
+  PlaceIndexReconciler(SearchApiPlaceSearchBackend backend, Index index) {
+    this.backend = backend;
+    this.index = index;
+  }
+
+  /**
+   * Compares all places with all documents and writes the differences.
+   */
+  void run() {
+    Iterator<Entity> entities = DatastoreServiceFactory.getDatastoreService()
+        .prepare(new Query(PlaceIndexRebuild.PLACE_KIND)
+            .addSort("placeId", SortDirection.ASCENDING))
+        .asIterator(FetchOptions.Builder.withChunkSize(BATCH_SIZE));
+
+    Place place = nextPlace(entities);
+    Document document = nextDocument();
+    while (place != null || document != null) {
+      int order = place == null ? 1 : document == null ? -1
+          : SearchApiPlaceSearchBackend.getDocumentId(place.getPlaceId())
+              .compareTo(document.getId());
+      if (order < 0) {
+        if (place.getLocation() != null) {
+          put(place);
+        }
+        place = nextPlace(entities);
+      } else if (order > 0) {
+        remove(document);
+        document = nextDocument();
+      } else {
+        if (place.getLocation() == null) {
+          remove(document);
+        } else if (!isCurrent(document, place)) {
+          put(place);
+        } else {
+          unchangedCount++;
+        }
+        place = nextPlace(entities);
+        document = nextDocument();
+      }
+    }
+    flush();
+  }
+
+  /**
+   * @return the ids of the places whose documents were removed because the places no longer
+   *     exist or have no location.
+   */
+  List<String> getRemovedPlaceIds() {
+    return removedPlaceIds;
+  }
+
+  private static boolean isCurrent(Document document, Place place) {
+    String fieldName = SearchApiPlaceSearchBackend.CONTENT_HASH_FIELD_NAME;
+    return document.getFieldCount(fieldName) == 1
+        && document.getOnlyField(fieldName).getAtom().equals(
+            SearchApiPlaceSearchBackend.getContentHash(
+                place.getName(), place.getAddress(), place.getLocation()));
+  }
+
+  /**
+   * @return the next place in the order of document ids, skipping places with the same place id
+   *     as the previous one, or null if there are no more. Places with encoded document ids are
+   *     set aside until all the others have been read.
+   */
+  private Place nextPlace(Iterator<Entity> entities) {
+    while (entities.hasNext()) {
+      Place place = PlaceIndexRebuild.toPlace(entities.next());
+      String placeId = place.getPlaceId();
+      if (placeId == null || placeId.equals(lastPlaceId)) {
+        continue;
+      }
+      lastPlaceId = placeId;
+      String documentId = SearchApiPlaceSearchBackend.getDocumentId(placeId);
+      if (documentId.equals(placeId)) {
+        return place;
+      }
+      if (!encodedPlaces.containsKey(documentId)) {
+        encodedPlaces.put(documentId, place);
+      }
+    }
+    if (encodedPlaceIterator == null) {
+      encodedPlaceIterator = encodedPlaces.values().iterator();
+    }
+    return encodedPlaceIterator.hasNext() ? encodedPlaceIterator.next() : null;
+  }
+
+  /**
+   * @return the next document of the index, or null if there are no more.
+   */
+  private Document nextDocument() {
+    if (documentPageIndex == documentPage.size()) {
+      if (lastDocumentPage) {
+        return null;
+      }
+      GetRequest.Builder request = GetRequest.newBuilder().setLimit(BATCH_SIZE);
+      if (lastDocumentId != null) {
+        request.setStartId(lastDocumentId).setIncludeStart(false);
+      }
+      documentPage = index.getRange(request.build()).getResults();
+      documentPageIndex = 0;
+      lastDocumentPage = documentPage.size() < BATCH_SIZE;
+      if (documentPage.isEmpty()) {
+        return null;
+      }
+    }
+    Document document = documentPage.get(documentPageIndex++);
+    lastDocumentId = document.getId();
+    return document;
+  }
+
+  private void put(Place place) {
+    placesToPut.add(place);
+    if (placesToPut.size() == BATCH_SIZE) {
+      flush();
+    }
+  }
+
+  private void remove(Document document) {
+    documentIdsToRemove.add(document.getId());
+    if (document.getFieldCount("id") == 1) {
+      removedPlaceIds.add(document.getOnlyField("id").getText());
+    }
+    if (documentIdsToRemove.size() == BATCH_SIZE) {
+      flush();
+    }
+  }
+
+  private void flush() {
+    if (!placesToPut.isEmpty()) {
+      backend.putPlaces(placesToPut);
+      putCount += placesToPut.size();
+      placesToPut.clear();
+    }
+    if (!documentIdsToRemove.isEmpty()) {
+      backend.removeDocuments(documentIdsToRemove);
+      removedCount += documentIdsToRemove.size();
+      documentIdsToRemove.clear();
+    }
+  }
+}
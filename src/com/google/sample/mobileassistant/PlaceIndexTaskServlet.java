@@ -0,0 +1,57 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.mobileassistant;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * HttpServlet for processing tasks that bring the search document of a place in line with its
+ * Place entity after the entity was written or removed.
+ */
+public class PlaceIndexTaskServlet extends HttpServlet {
+  private static final long serialVersionUID = 1L;
+
+  private static final Logger log = Logger.getLogger(PlaceIndexTaskServlet.class.getName());
+
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    String placeId = req.getParameter("placeId");
+    if (placeId == null) {
+      log.warning("Missing placeId parameter");
+      return;
+    }
+
+    // Let Task Queue handle any exceptions through normal retry logic and error logging.
+    PlaceSearchBackend backend = PlacesHelper.getBackend();
+    Place place = PlacesHelper.loadPlace(placeId);
+    if (place != null && place.getLocation() != null) {
+      backend.putPlaces(Collections.singletonList(place));
+      PlacesHelper.onPlacesChanged(Collections.singletonList(place),
+          Collections.<String>emptyList());
+      log.info("Indexed place " + placeId);
+    } else {
+      backend.removePlaces(Collections.singletonList(placeId));
+      PlacesHelper.onPlacesChanged(Collections.<Place>emptyList(),
+          Collections.singletonList(placeId));
+      log.info("Removed place " + placeId + " from the index");
+    }
+  }
+}
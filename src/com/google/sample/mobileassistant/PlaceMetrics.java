@@ -0,0 +1,123 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.mobileassistant;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Application-wide counters about place searches, index maintenance and check-in ingestion.
+ *
+ * <p>Counters are added up in memory and flushed to memcache with a single batch call at most
+ * once per {@link #FLUSH_INTERVAL_IN_MILLIS}, so counting costs no RPC on the request path. The
+ * totals in memcache cover all instances but are lost when memcache evicts them, which is fine
+ * for operational metrics.
+ */
+class PlaceMetrics {
+  private static final Logger log = Logger.getLogger(PlaceMetrics.class.getName());
+
+  private static final String KEY_PREFIX = "PlaceMetrics:";
+  private static final String NAMES_KEY = "PlaceMetrics:names";
+  private static final long FLUSH_INTERVAL_IN_MILLIS = 60 * 1000;
+
+  private static final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+
+  private static final ConcurrentHashMap<String, AtomicLong> pending =
+      new ConcurrentHashMap<String, AtomicLong>();
+  private static volatile long lastFlushTime = System.currentTimeMillis();
+
+  /**
+   * Adds a value to a counter.
+   */
+  static void add(String name, long delta) {
+    AtomicLong counter = pending.get(name);
+    if (counter == null) {
+      AtomicLong existing = pending.putIfAbsent(name, counter = new AtomicLong());
+      if (existing != null) {
+        counter = existing;
+      }
+    }
+    counter.addAndGet(delta);
+
+    if (System.currentTimeMillis() - lastFlushTime > FLUSH_INTERVAL_IN_MILLIS) {
+      flush();
+    }
+  }
+
+  /**
+   * Sends the counts of this instance to memcache.
+   */
+  static void flush() {
+    Map<String, Long> deltas = new HashMap<String, Long>();
+    synchronized (PlaceMetrics.class) {
+      lastFlushTime = System.currentTimeMillis();
+      for (Map.Entry<String, AtomicLong> entry : pending.entrySet()) {
+        long delta = entry.getValue().getAndSet(0);
+        if (delta != 0) {
+          deltas.put(KEY_PREFIX + entry.getKey(), delta);
+        }
+      }
+    }
+    if (deltas.isEmpty()) {
+      return;
+    }
+
+    try {
+      memcache.incrementAll(deltas, 0L);
+      @SuppressWarnings("unchecked")
+      Map<String, Boolean> names = (Map<String, Boolean>) memcache.get(NAMES_KEY);
+      boolean newNames = names == null;
+      names = newNames ? new HashMap<String, Boolean>() : names;
+      for (String key : deltas.keySet()) {
+        newNames |= names.put(key.substring(KEY_PREFIX.length()), true) == null;
+      }
+      if (newNames) {
+        memcache.put(NAMES_KEY, new HashMap<String, Boolean>(names));
+      }
+    } catch (RuntimeException e) {
+      log.warning("Exception when flushing place metrics: " + e.getMessage());
+    }
+  }
+
+  /**
+   * @return the totals of all counters over all instances, by name.
+   */
+  static Map<String, Long> getTotals() {
+    flush();
+    Map<String, Long> totals = new TreeMap<String, Long>();
+    @SuppressWarnings("unchecked")
+    Map<String, Boolean> names = (Map<String, Boolean>) memcache.get(NAMES_KEY);
+    if (names == null) {
+      return totals;
+    }
+    List<String> keys = new ArrayList<String>();
+    for (String name : names.keySet()) {
+      keys.add(KEY_PREFIX + name);
+    }
+    for (Map.Entry<String, Object> entry : memcache.getAll(keys).entrySet()) {
+      totals.put(entry.getKey().substring(KEY_PREFIX.length()), (Long) entry.getValue());
+    }
+    return totals;
+  }
+}
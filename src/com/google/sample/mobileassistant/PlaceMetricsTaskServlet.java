@@ -0,0 +1,58 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.mobileassistant;
+
+import com.google.appengine.api.datastore.GeoPt;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * HttpServlet for processing tasks that count, for a sample of the searches stopped at a ring of
+ * the adaptive radius mode, the candidates the search did not have to rank.
+ */
+public class PlaceMetricsTaskServlet extends HttpServlet {
+  private static final long serialVersionUID = 1L;
+
+  private static final Logger log = Logger.getLogger(PlaceMetricsTaskServlet.class.getName());
+
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    String latitude = req.getParameter("latitude");
+    String longitude = req.getParameter("longitude");
+    if (latitude == null || longitude == null) {
+      log.warning("Missing latitude or longitude parameter");
+      return;
+    }
+
+    GeoPt location;
+    long distanceInMeters;
+    long ringInMeters;
+    try {
+      location = new GeoPt(Float.parseFloat(latitude), Float.parseFloat(longitude));
+      distanceInMeters = Long.parseLong(req.getParameter("distanceInMeters"));
+      ringInMeters = Long.parseLong(req.getParameter("ringInMeters"));
+    } catch (NumberFormatException e) {
+      log.warning("Invalid parameters: " + e.getMessage());
+      return;
+    }
+
+    PlacesHelper.countAvoidedCandidates(location, distanceInMeters, ringInMeters);
+  }
+}
@@ -0,0 +1,46 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.mobileassistant;
+
+import java.util.List;
+
+/**
+ * A page of nearby places and the cursor to request the next page with.
+ */
+public class PlacePage {
+
+  private List<PlaceInfo> places;
+
+  private String nextCursor;
+
+  public List<PlaceInfo> getPlaces() {
+    return places;
+  }
+
+  public void setPlaces(List<PlaceInfo> places) {
+    this.places = places;
+  }
+
+  /**
+   * @return the cursor of the next page, or null if this is the last page.
+   */
+  public String getNextCursor() {
+    return nextCursor;
+  }
+
+  public void setNextCursor(String nextCursor) {
+    this.nextCursor = nextCursor;
+  }
+}
@@ -0,0 +1,106 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.mobileassistant;
+
+import com.google.appengine.api.datastore.GeoPt;
+
+import java.util.List;
+
+/**
+ * A searchable store of Places that answers geo-proximity queries.
+ */
+interface PlaceSearchBackend {
+  /**
+   * Finds places within a given distance from a location.
+   *
+   * @param location the center of the search.
+   * @param distanceInMeters the maximum distance from the location.
+   * @param resultCount the maximum number of places to be returned.
+   * @return the matching places, closest first, with their distance from the location.
+   */
+  List<PlaceInfo> getPlaces(GeoPt location, long distanceInMeters, int resultCount);
+
+  /**
+   * Finds places within a given distance from a location that come after a given position in
+   * the order of distance and then place id. Pass a negative afterDistanceInKm to start from the
+   * closest place.
+   *
+   * @see PlaceSpatialIndex#getPlacesAfter(GeoPt, long, double, String, int)
+   */
+  List<PlaceInfo> getPlacesAfter(GeoPt location, long distanceInMeters, double afterDistanceInKm,
+      String afterPlaceId, int resultCount);
+
+  /**
+   * Counts the places within a given distance from a location. The count may be approximate
+   * when it is large.
+   *
+   * @param location the center of the search.
+   * @param distanceInMeters the maximum distance from the location.
+   * @return the number of places.
+   */
+  long countPlaces(GeoPt location, long distanceInMeters);
+
+  /**
+   * Finds places within a given distance from a location whose name or address matches each
+   * word of a text.
+   *
+   * @param text the words to be matched.
+   * @param location the center of the search.
+   * @param distanceInMeters the maximum distance from the location.
+   * @param resultCount the maximum number of places to be returned.
+   * @return the matching places, closest first, with their distance from the location.
+   */
+  List<PlaceInfo> searchPlaces(
+      String text, GeoPt location, long distanceInMeters, int resultCount);
+
+  /**
+   * Adds the given places to the searchable store, replacing earlier versions of them.
+   *
+   * @param places the places to be added.
+   */
+  void putPlaces(List<Place> places);
+
+  /**
+   * Removes the given places from the searchable store, if they are there.
+   *
+   * @param placeIds the ids of the places to be removed.
+   */
+  void removePlaces(List<String> placeIds);
+
+  /**
+   * Starts rebuilding the searchable store from scratch. Queries keep being answered from the
+   * current places until {@link #finishRebuild(long)} is called, and the places put or removed
+   * meanwhile also go into the new store.
+   *
+   * @return the version of the new store.
+   */
+  long beginRebuild();
+
+  /**
+   * Adds places to a store that is being rebuilt.
+   *
+   * @param version the version returned by {@link #beginRebuild()}.
+   * @param places the places to be added.
+   */
+  void putRebuiltPlaces(long version, List<Place> places);
+
+  /**
+   * Makes a rebuilt store answer queries and discards the stores it replaces.
+   *
+   * @param version the version returned by {@link #beginRebuild()}.
+   * @throws IllegalStateException if another rebuild has been started since.
+   */
+  void finishRebuild(long version);
+}
@@ -0,0 +1,268 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.mobileassistant;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Binary snapshot of the place set, i.e. the buffer of a {@link CompactPlaceStore} with the ids,
+ * names, addresses, coordinates and KD-tree of all places, so that instances can serve geo
+ * queries from their first request without loading the Place entities.
+ *
+ * <p>The maintenance job writes the snapshot to the datastore in chunks, and the datastore
+ * holds the authoritative version. An instance loads the snapshot from a file bundled with the
+ * application if it is at least as recent, memory-mapping it so that it takes no heap, and
+ * otherwise from the datastore into a direct buffer. A bundled file is created by saving the
+ * output of /admin/placesnapshot, which is the version of the snapshot followed by the buffer,
+ * as {@link #SNAPSHOT_FILE} before deploying.
+ */
+class PlaceSnapshot {
+  private static final Logger log = Logger.getLogger(PlaceSnapshot.class.getName());
+
+  static final String SNAPSHOT_FILE =
+      System.getProperty("mobileassistant.places.snapshotFile", "WEB-INF/places.snapshot");
+
+  private static final String CHUNK_KIND = "PlaceSnapshotChunk";
+  private static final String POINTER_KIND = "PlaceSnapshot";
+  private static final String POINTER_NAME = "latest";
+  private static final String VERSION_PROPERTY = "version";
+  private static final String CHUNKS_PROPERTY = "chunks";
+  private static final String SIZE_PROPERTY = "size";
+  private static final String DATA_PROPERTY = "data";
+
+  // Datastore entities are limited to 1 MB.
+  private static final int CHUNK_SIZE = 900 * 1024;
+  private static final int CHUNKS_PER_GET = 16;
+  private static final int DELETE_BATCH_SIZE = 500;
+
+  final CompactPlaceStore store;
+  // The time the places of the snapshot started to be read.
+  final long version;
+
+  private PlaceSnapshot(CompactPlaceStore store, long version) {
+    this.store = store;
+    this.version = version;
+  }
+
+  /**
+   * Writes the buffer of a store to the datastore as the latest snapshot and deletes the
+   * previous snapshots.
+   *
+   * @param loadTime when the places of the store started to be read, which is the version of
+   *     the snapshot.
+   * @return the size of the snapshot in bytes.
+   */
+  static int write(CompactPlaceStore store, long loadTime) {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    long version = loadTime;
+    ByteBuffer buffer = store.getBuffer();
+    int size = buffer.remaining();
+
+    int chunks = 0;
+    while (buffer.hasRemaining()) {
+      byte[] data = new byte[Math.min(CHUNK_SIZE, buffer.remaining())];
+      buffer.get(data);
+      Entity chunk = new Entity(CHUNK_KIND, getChunkName(version, chunks++));
+      chunk.setProperty(VERSION_PROPERTY, version);
+      chunk.setUnindexedProperty(DATA_PROPERTY, new Blob(data));
+      datastore.put(chunk);
+    }
+
+    Entity pointer = new Entity(POINTER_KIND, POINTER_NAME);
+    pointer.setUnindexedProperty(VERSION_PROPERTY, version);
+    pointer.setUnindexedProperty(CHUNKS_PROPERTY, chunks);
+    pointer.setUnindexedProperty(SIZE_PROPERTY, size);
+    datastore.put(pointer);
+
+    Query query = new Query(CHUNK_KIND)
+        .setFilter(new FilterPredicate(VERSION_PROPERTY, FilterOperator.LESS_THAN, version))
+        .setKeysOnly();
+    List<Key> keys = new ArrayList<Key>();
+    for (Entity entity : datastore.prepare(query).asIterable(
+        FetchOptions.Builder.withChunkSize(DELETE_BATCH_SIZE))) {
+      keys.add(entity.getKey());
+      if (keys.size() == DELETE_BATCH_SIZE) {
+        datastore.delete(keys);
+        keys.clear();
+      }
+    }
+    datastore.delete(keys);
+
+    log.info("Wrote place snapshot version " + version + ": " + store.size() + " places, "
+        + size + " bytes in " + chunks + " chunks");
+    return size;
+  }
+
+  /**
+   * Opens the bundled snapshot file if it is at least as recent as the latest snapshot in the
+   * datastore, and otherwise the latter.
+   *
+   * @return the snapshot, or null if there is none.
+   */
+  static PlaceSnapshot open() {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    Entity pointer = null;
+    boolean pointerKnown = true;
+    try {
+      pointer = getPointer(datastore);
+    } catch (RuntimeException e) {
+      log.warning("Cannot read the place snapshot version: " + e.getMessage());
+      pointerKnown = false;
+    }
+    long latestVersion = pointer == null ? 0 : (Long) pointer.getProperty(VERSION_PROPERTY);
+
+    File file = new File(SNAPSHOT_FILE);
+    if (file.isFile()) {
+      try {
+        ByteBuffer contents = mapFile(file);
+        long fileVersion = contents.getLong(0);
+        if (fileVersion >= latestVersion || !pointerKnown) {
+          contents.position(8);
+          return new PlaceSnapshot(CompactPlaceStore.wrap(contents.slice()), fileVersion);
+        }
+        log.info("The place snapshot file has version " + fileVersion
+            + ", older than version " + latestVersion + " in the datastore");
+      } catch (IOException e) {
+        log.warning("Cannot read the place snapshot file: " + e.getMessage());
+      } catch (RuntimeException e) {
+        log.warning("Invalid place snapshot file: " + e.getMessage());
+      }
+    }
+
+    if (pointer == null) {
+      return null;
+    }
+    ByteBuffer buffer = ByteBuffer.allocateDirect(
+        ((Long) pointer.getProperty(SIZE_PROPERTY)).intValue());
+    return readChunks(datastore, pointer, buffer)
+        ? new PlaceSnapshot(CompactPlaceStore.wrap(buffer), latestVersion) : null;
+  }
+
+  /**
+   * @return the version of the latest snapshot in the datastore, or 0 if there is none.
+   */
+  static long getLatestVersion() {
+    Entity pointer = getPointer(DatastoreServiceFactory.getDatastoreService());
+    return pointer == null ? 0 : (Long) pointer.getProperty(VERSION_PROPERTY);
+  }
+
+  /**
+   * Reads the latest snapshot from the datastore in the layout of {@link #SNAPSHOT_FILE}: its
+   * version as a long, followed by the buffer of the store.
+   *
+   * @return the file contents, or null if there is no snapshot.
+   */
+  static ByteBuffer readFile() {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    Entity pointer = getPointer(datastore);
+    if (pointer == null) {
+      return null;
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(
+        8 + ((Long) pointer.getProperty(SIZE_PROPERTY)).intValue());
+    buffer.putLong((Long) pointer.getProperty(VERSION_PROPERTY));
+    return readChunks(datastore, pointer, buffer) ? buffer : null;
+  }
+
+  /**
+   * @return the pointer to the latest snapshot, or null if there is none.
+   */
+  private static Entity getPointer(DatastoreService datastore) {
+    try {
+      return datastore.get(KeyFactory.createKey(POINTER_KIND, POINTER_NAME));
+    } catch (EntityNotFoundException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Reads the chunks of a snapshot into a buffer, which is flipped.
+   *
+   * @return false if the snapshot has been replaced by a newer one while reading.
+   */
+  private static boolean readChunks(DatastoreService datastore, Entity pointer,
+      ByteBuffer buffer) {
+    long version = (Long) pointer.getProperty(VERSION_PROPERTY);
+    int chunks = ((Long) pointer.getProperty(CHUNKS_PROPERTY)).intValue();
+    for (int first = 0; first < chunks; first += CHUNKS_PER_GET) {
+      List<Key> keys = new ArrayList<Key>();
+      for (int i = first; i < Math.min(chunks, first + CHUNKS_PER_GET); i++) {
+        keys.add(KeyFactory.createKey(CHUNK_KIND, getChunkName(version, i)));
+      }
+      Map<Key, Entity> entities = datastore.get(keys);
+      for (Key key : keys) {
+        Entity chunk = entities.get(key);
+        if (chunk == null) {
+          log.warning("Place snapshot version " + version + " is incomplete");
+          return false;
+        }
+        buffer.put(((Blob) chunk.getProperty(DATA_PROPERTY)).getBytes());
+      }
+    }
+    buffer.flip();
+    return true;
+  }
+
+  private static ByteBuffer mapFile(File file) throws IOException {
+    RandomAccessFile input = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = input.getChannel();
+      // Memory-mapping is not available everywhere, e.g. in some sandboxes: then read the file.
+      // The mapping stays valid after the channel is closed.
+      try {
+        return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      } catch (IOException e) {
+        return readFully(channel);
+      } catch (RuntimeException e) {
+        return readFully(channel);
+      }
+    } finally {
+      input.close();
+    }
+  }
+
+  private static ByteBuffer readFully(FileChannel channel) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocateDirect((int) channel.size());
+    while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+      continue;
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  private static String getChunkName(long version, int chunk) {
+    return version + ":" + chunk;
+  }
+}
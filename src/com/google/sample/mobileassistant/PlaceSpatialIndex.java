@@ -0,0 +1,55 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.mobileassistant;
+
+import com.google.appengine.api.datastore.GeoPt;
+
+import java.util.List;
+
+/**
+ * Immutable in-process index over Places that answers geo-proximity queries.
+ */
+interface PlaceSpatialIndex {
+  /**
+   * @return the number of indexed places.
+   */
+  int size();
+
+  /**
+   * Finds up to resultCount places within a given distance from a location, closest first.
+   *
+   * @param location the center of the search.
+   * @param distanceInMeters the maximum distance from the location.
+   * @param resultCount the maximum number of places to be returned.
+   * @return the matching places with their distance from the location.
+   */
+  List<PlaceInfo> getPlaces(GeoPt location, long distanceInMeters, int resultCount);
+
+  /**
+   * Finds up to resultCount places within a given distance from a location that come after a
+   * given position in the order of distance and then place id, closest first. Distances used
+   * for the ordering are the ones reported in the results, so a page can continue from the last
+   * place of the previous one.
+   *
+   * @param location the center of the search.
+   * @param distanceInMeters the maximum distance from the location.
+   * @param afterDistanceInKm the distance of the position to continue after.
+   * @param afterPlaceId the place id of the position to continue after.
+   * @param resultCount the maximum number of places to be returned.
+   * @return the matching places with their distance from the location.
+   */
+  List<PlaceInfo> getPlacesAfter(GeoPt location, long distanceInMeters, double afterDistanceInKm,
+      String afterPlaceId, int resultCount);
+}
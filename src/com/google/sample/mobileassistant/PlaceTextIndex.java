@@ -0,0 +1,394 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.mobileassistant;
+
+import com.google.appengine.api.datastore.GeoPt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable in-memory inverted index over the names and addresses of Places, for
+ * search-as-you-type combined with a geo radius filter.
+ *
+ * <p>Every word of a place's name and address is indexed under each of its prefixes of up to
+ * {@link #MAX_PREFIX_LENGTH} characters (edge n-grams), with a posting list of the matching
+ * places in ascending order. Places are numbered in the order of a latitude/longitude cell grid,
+ * so the places of the cells of a row that overlap a query's bounding box are a contiguous range
+ * of numbers. A query walks the part of its smallest posting list within those ranges, checks
+ * the other lists by binary search, and ranks the matches within the radius by distance. Query
+ * words longer than the indexed prefixes are verified against the place's words.
+ */
+class PlaceTextIndex {
+  static final int MAX_PREFIX_LENGTH = 8;
+
+  private static final double CELL_SIZE_IN_DEGREES = 0.1;
+  private static final int COLUMNS = (int) Math.ceil(360 / CELL_SIZE_IN_DEGREES);
+
+  // Sorted keys of the occupied cells and, for each of them, the number of its first place.
+  // The places of cell i are numbered [cellStart[i], cellStart[i + 1]).
+  private final long[] cellKeys;
+  private final int[] cellStart;
+
+  private final String[] placeIds;
+  private final String[] names;
+  private final String[] addresses;
+  private final double[] latitudes;
+  private final double[] longitudes;
+  private final Map<String, int[]> postings;
+
+  private PlaceTextIndex(long[] cellKeys, int[] cellStart, String[] placeIds, String[] names,
+      String[] addresses, double[] latitudes, double[] longitudes, Map<String, int[]> postings) {
+    this.cellKeys = cellKeys;
+    this.cellStart = cellStart;
+    this.placeIds = placeIds;
+    this.names = names;
+    this.addresses = addresses;
+    this.latitudes = latitudes;
+    this.longitudes = longitudes;
+    this.postings = postings;
+  }
+
+  /**
+   * Builds an index over the given places.
+   *
+   * @param places the places to be indexed. Places without a location are skipped.
+   * @return the index.
+   */
+  static PlaceTextIndex build(List<? extends Place> places) {
+    List<Place> located = new ArrayList<Place>(places.size());
+    for (Place place : places) {
+      if (place.getLocation() != null) {
+        located.add(place);
+      }
+    }
+
+    int size = located.size();
+    final long[] keys = new long[size];
+    Integer[] order = new Integer[size];
+    for (int i = 0; i < size; i++) {
+      GeoPt location = located.get(i).getLocation();
+      keys[i] = cellKey(row(location.getLatitude()), column(location.getLongitude()));
+      order[i] = i;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        return Long.compare(keys[a], keys[b]);
+      }
+    });
+
+    long[] cellKeys = new long[size];
+    int[] cellStart = new int[size + 1];
+    String[] placeIds = new String[size];
+    String[] names = new String[size];
+    String[] addresses = new String[size];
+    double[] latitudes = new double[size];
+    double[] longitudes = new double[size];
+
+    int cells = 0;
+    Map<String, int[]> growing = new HashMap<String, int[]>();
+    Set<String> prefixes = new HashSet<String>();
+    for (int i = 0; i < size; i++) {
+      Place place = located.get(order[i]);
+      long key = keys[order[i]];
+      if (cells == 0 || cellKeys[cells - 1] != key) {
+        cellKeys[cells] = key;
+        cellStart[cells] = i;
+        cells++;
+      }
+
+      placeIds[i] = place.getPlaceId();
+      names[i] = place.getName();
+      addresses[i] = place.getAddress();
+      latitudes[i] = place.getLocation().getLatitude();
+      longitudes[i] = place.getLocation().getLongitude();
+
+      prefixes.clear();
+      for (String word : tokenize(names[i] + " " + addresses[i])) {
+        for (int length = 1; length <= Math.min(word.length(), MAX_PREFIX_LENGTH); length++) {
+          prefixes.add(word.substring(0, length));
+        }
+      }
+      // Places are added in ascending order, so every posting list stays sorted. The first
+      // element of a growing list holds its length.
+      for (String prefix : prefixes) {
+        int[] list = growing.get(prefix);
+        if (list == null) {
+          list = new int[4];
+        } else if (list[0] + 1 == list.length) {
+          list = Arrays.copyOf(list, list.length * 2);
+        }
+        list[0]++;
+        list[list[0]] = i;
+        growing.put(prefix, list);
+      }
+    }
+    cellStart[cells] = size;
+
+    Map<String, int[]> postings = new HashMap<String, int[]>(growing.size() * 2);
+    for (Map.Entry<String, int[]> entry : growing.entrySet()) {
+      int[] list = entry.getValue();
+      postings.put(entry.getKey(), Arrays.copyOfRange(list, 1, list[0] + 1));
+    }
+
+    return new PlaceTextIndex(Arrays.copyOf(cellKeys, cells), Arrays.copyOf(cellStart, cells + 1),
+        placeIds, names, addresses, latitudes, longitudes, postings);
+  }
+
+  /**
+   * @return the number of indexed places.
+   */
+  int size() {
+    return placeIds.length;
+  }
+
+  /**
+   * Finds up to resultCount places whose name or address has a word starting with each word of
+   * the text, within a given distance from a location, closest first.
+   *
+   * @param text the words to be matched, typically as typed so far.
+   * @param location the center of the search.
+   * @param distanceInMeters the maximum distance from the location.
+   * @param resultCount the maximum number of places to be returned.
+   * @return the matching places with their distance from the location.
+   */
+  List<PlaceInfo> search(String text, GeoPt location, long distanceInMeters, int resultCount) {
+    List<String> words = tokenize(text);
+    if (words.isEmpty()) {
+      return new ArrayList<PlaceInfo>();
+    }
+
+    int[][] lists = new int[words.size()][];
+    boolean verify = false;
+    for (int i = 0; i < words.size(); i++) {
+      String word = words.get(i);
+      if (word.length() > MAX_PREFIX_LENGTH) {
+        word = word.substring(0, MAX_PREFIX_LENGTH);
+        verify = true;
+      }
+      lists[i] = postings.get(word);
+      if (lists[i] == null) {
+        return new ArrayList<PlaceInfo>();
+      }
+    }
+    Arrays.sort(lists, new Comparator<int[]>() {
+      @Override
+      public int compare(int[] a, int[] b) {
+        return Integer.compare(a.length, b.length);
+      }
+    });
+
+    double latitude = location.getLatitude();
+    double longitude = location.getLongitude();
+    double distanceInKm = distanceInMeters / 1000.0;
+    double latitudeDelta = distanceInKm / GeoDistance.KM_PER_DEGREE;
+    int minRow = row(Math.max(-90, latitude - latitudeDelta));
+    int maxRow = row(Math.min(90, latitude + latitudeDelta));
+    double maxAbsLatitude = Math.min(90, Math.abs(latitude) + latitudeDelta);
+    double longitudeDelta = maxAbsLatitude >= 90 ? 180
+        : latitudeDelta / Math.cos(Math.toRadians(maxAbsLatitude));
+    int minColumn = 0;
+    int maxColumn = COLUMNS - 1;
+    if (longitudeDelta < 180) {
+      minColumn = column(longitude - longitudeDelta);
+      maxColumn = column(longitude + longitudeDelta);
+    }
+
+    // Only the part of the smallest posting list within the bounding box is walked.
+    Matches matches = new Matches(latitude, longitude, distanceInKm, lists, words, verify);
+    for (int row = minRow; row <= maxRow; row++) {
+      if (minColumn <= maxColumn) {
+        matches.scan(row, minColumn, maxColumn);
+      } else {
+        // the range wraps around the antimeridian
+        matches.scan(row, minColumn, COLUMNS - 1);
+        matches.scan(row, 0, maxColumn);
+      }
+    }
+    int found = matches.found;
+    int[] places = matches.places;
+    double[] distances = matches.distances;
+
+    // Partial selection of the closest matches.
+    int results = Math.min(resultCount, found);
+    List<PlaceInfo> result = new ArrayList<PlaceInfo>(results);
+    for (int i = 0; i < results; i++) {
+      int best = i;
+      for (int j = i + 1; j < found; j++) {
+        if (distances[j] < distances[best]) {
+          best = j;
+        }
+      }
+      int match = places[best];
+      double distance = distances[best];
+      places[best] = places[i];
+      distances[best] = distances[i];
+      places[i] = match;
+      distances[i] = distance;
+
+      PlaceInfo place = new PlaceInfo();
+      place.setplaceID(placeIds[match]);
+      place.setName(names[match]);
+      place.setAddress(addresses[match]);
+      place.setLocation(new GeoPt((float) latitudes[match], (float) longitudes[match]));
+      place.setDistanceInKilometers(distance);
+      result.add(place);
+    }
+    return result;
+  }
+
+  /**
+   * Growable buffer of the places matching a query and their distances.
+   */
+  private class Matches {
+    final double latitude;
+    final double longitude;
+    final double maxDistanceInKm;
+    final int[][] lists;
+    final List<String> words;
+    final boolean verify;
+
+    int[] places = new int[16];
+    double[] distances = new double[16];
+    int found;
+
+    Matches(double latitude, double longitude, double maxDistanceInKm, int[][] lists,
+        List<String> words, boolean verify) {
+      this.latitude = latitude;
+      this.longitude = longitude;
+      this.maxDistanceInKm = maxDistanceInKm;
+      this.lists = lists;
+      this.words = words;
+      this.verify = verify;
+    }
+
+    /**
+     * Adds the matches among the places of the cells of a row in a range of columns.
+     */
+    void scan(int row, int minColumn, int maxColumn) {
+      int from = cellStart[firstCellFrom(cellKey(row, minColumn))];
+      int to = cellStart[firstCellFrom(cellKey(row, maxColumn) + 1)];
+      if (from == to) {
+        return;
+      }
+
+      int[] smallest = lists[0];
+      int position = Arrays.binarySearch(smallest, from);
+      for (int i = position < 0 ? -position - 1 : position;
+          i < smallest.length && smallest[i] < to; i++) {
+        int place = smallest[i];
+        if (!isInOtherLists(place)) {
+          continue;
+        }
+        double distance = GeoDistance.haversineKm(
+            latitude, longitude, latitudes[place], longitudes[place]);
+        if (distance > maxDistanceInKm || (verify && !matchesAllWords(place, words))) {
+          continue;
+        }
+        if (found == places.length) {
+          places = Arrays.copyOf(places, found * 2);
+          distances = Arrays.copyOf(distances, found * 2);
+        }
+        places[found] = place;
+        distances[found] = distance;
+        found++;
+      }
+    }
+
+    private boolean isInOtherLists(int place) {
+      for (int k = 1; k < lists.length; k++) {
+        if (Arrays.binarySearch(lists[k], place) < 0) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /**
+   * @return the position of the first occupied cell whose key is not less than the given one.
+   */
+  private int firstCellFrom(long key) {
+    int position = Arrays.binarySearch(cellKeys, key);
+    return position < 0 ? -position - 1 : position;
+  }
+
+  private boolean matchesAllWords(int place, List<String> words) {
+    return matchesAllWords(names[place] + " " + addresses[place], words);
+  }
+
+  /**
+   * @return whether the text has a word starting with each of the given words.
+   */
+  static boolean matchesAllWords(String text, List<String> words) {
+    List<String> placeWords = tokenize(text);
+    for (String word : words) {
+      boolean found = false;
+      for (String placeWord : placeWords) {
+        if (placeWord.startsWith(word)) {
+          found = true;
+          break;
+        }
+      }
+      if (!found) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int row(double latitude) {
+    return (int) Math.floor((latitude + 90) / CELL_SIZE_IN_DEGREES);
+  }
+
+  private static int column(double longitude) {
+    double normalized = ((longitude + 180) % 360 + 360) % 360;
+    return (int) Math.floor(normalized / CELL_SIZE_IN_DEGREES) % COLUMNS;
+  }
+
+  private static long cellKey(int row, int column) {
+    return (long) row * COLUMNS + column;
+  }
+
+  /**
+   * Splits text into lower case words made of letters and digits.
+   */
+  static List<String> tokenize(String text) {
+    List<String> words = new ArrayList<String>();
+    if (text == null) {
+      return words;
+    }
+    String lowerCase = text.toLowerCase(Locale.ROOT);
+    int start = -1;
+    for (int i = 0; i <= lowerCase.length(); i++) {
+      boolean wordChar = i < lowerCase.length() && Character.isLetterOrDigit(lowerCase.charAt(i));
+      if (wordChar && start < 0) {
+        start = i;
+      } else if (!wordChar && start >= 0) {
+        words.add(lowerCase.substring(start, i));
+        start = -1;
+      }
+    }
+    return words;
+  }
+}
@@ -0,0 +1,358 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.mobileassistant;
+
+import com.google.appengine.api.datastore.GeoPt;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Two-tier (instance-local LRU and memcache) cache of nearby-places search results.
+ *
+ * <p>Callers are grouped by a quantized location cell, a radius bucket and a count bucket. The
+ * cache stores the candidate places around the center of the cell, and the result for each
+ * caller is computed from the candidates using the caller's own location. When the candidates
+ * cannot be proven to contain the exact answer for a caller, the cache reports a miss.
+ *
+ * <p>All entries are tagged with a generation number kept in memcache, so bumping the generation
+ * with {@link #invalidate()} discards the cached results on every instance.
+ */
+class PlacesCache {
+  private static final Logger log = Logger.getLogger(PlacesCache.class.getName());
+
+  private static final String GENERATION_KEY = "PlacesCache:generation";
+  private static final double CELL_SIZE_IN_DEGREES = 0.01;
+  private static final long[] RADIUS_BUCKETS_IN_KM = {1, 2, 5, 10, 25, 50, 100, 200};
+  private static final int[] COUNT_BUCKETS = {10, 25, 50, 100};
+  private static final int CANDIDATES_PER_RESULT = 4;
+  private static final int MAX_CANDIDATES = 1000;
+  private static final int LOCAL_CACHE_SIZE = 1000;
+  private static final int MEMCACHE_EXPIRATION_IN_SECONDS = 60 * 60;
+  private static final long GENERATION_REFRESH_INTERVAL_IN_MILLIS = 5 * 1000;
+
+  private static final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+
+  private static final Map<String, Candidates> localCache =
+      new LinkedHashMap<String, Candidates>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Candidates> eldest) {
+          return size() > LOCAL_CACHE_SIZE;
+        }
+      };
+
+  private static long generation;
+  private static long generationReadTime;
+
+  /**
+   * Places around the center of a cell or map tile, together with the distance from the center
+   * up to which the list is known to contain every place (of the tile, for map tiles).
+   */
+  static class Candidates implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    final String[] placeIds;
+    final String[] names;
+    final String[] addresses;
+    final float[] latitudes;
+    final float[] longitudes;
+    final double coveredDistanceInKm;
+
+    Candidates(List<PlaceInfo> places, double coveredDistanceInKm) {
+      int size = places.size();
+      placeIds = new String[size];
+      names = new String[size];
+      addresses = new String[size];
+      latitudes = new float[size];
+      longitudes = new float[size];
+      for (int i = 0; i < size; i++) {
+        PlaceInfo place = places.get(i);
+        placeIds[i] = place.getPlaceId();
+        names[i] = place.getName();
+        addresses[i] = place.getAddress();
+        latitudes[i] = place.getLocation().getLatitude();
+        longitudes[i] = place.getLocation().getLongitude();
+      }
+      this.coveredDistanceInKm = coveredDistanceInKm;
+    }
+
+    int size() {
+      return placeIds.length;
+    }
+
+    PlaceInfo getPlaceInfo(int i, double distanceInKm) {
+      PlaceInfo place = new PlaceInfo();
+      place.setplaceID(placeIds[i]);
+      place.setName(names[i]);
+      place.setAddress(addresses[i]);
+      place.setLocation(new GeoPt(latitudes[i], longitudes[i]));
+      place.setDistanceInKilometers(distanceInKm);
+      return place;
+    }
+  }
+
+  /**
+   * Returns places within a given distance from a location, closest first, either from the
+   * cache or by fetching and caching the candidates for the location's cell.
+   *
+   * @return the places, or null if the result cannot be served from cached candidates.
+   */
+  static List<PlaceInfo> getPlaces(GeoPt location, long distanceInMeters, int resultCount) {
+    long radiusBucketInKm = bucket(RADIUS_BUCKETS_IN_KM, (distanceInMeters + 999) / 1000);
+    int countBucket = (int) bucket(COUNT_BUCKETS, resultCount);
+    if (radiusBucketInKm < 0 || countBucket < 0) {
+      return null;
+    }
+
+    long row = (long) Math.floor((location.getLatitude() + 90) / CELL_SIZE_IN_DEGREES);
+    long column = (long) Math.floor((location.getLongitude() + 180) / CELL_SIZE_IN_DEGREES);
+    double centerLatitude = (row + 0.5) * CELL_SIZE_IN_DEGREES - 90;
+    double centerLongitude = (column + 0.5) * CELL_SIZE_IN_DEGREES - 180;
+    String key = "PlacesCache:" + getGeneration() + ":" + row + ":" + column + ":"
+        + radiusBucketInKm + ":" + countBucket;
+
+    Candidates candidates = lookup(key);
+    if (candidates == null) {
+      candidates = fetchCandidates(centerLatitude, centerLongitude, radiusBucketInKm,
+          countBucket);
+      store(key, candidates);
+    }
+
+    return getPlacesFromCandidates(candidates, location, distanceInMeters / 1000.0, resultCount,
+        GeoDistance.haversineKm(centerLatitude, centerLongitude, location.getLatitude(),
+            location.getLongitude()));
+  }
+
+  /**
+   * Returns a key shared by all queries that {@link #getPlaces(GeoPt, long, int)} answers from
+   * the same cached candidates, or null for queries that are not cached.
+   */
+  static String getCandidatesKey(GeoPt location, long distanceInMeters, int resultCount) {
+    long radiusBucketInKm = bucket(RADIUS_BUCKETS_IN_KM, (distanceInMeters + 999) / 1000);
+    int countBucket = (int) bucket(COUNT_BUCKETS, resultCount);
+    if (radiusBucketInKm < 0 || countBucket < 0) {
+      return null;
+    }
+
+    long row = (long) Math.floor((location.getLatitude() + 90) / CELL_SIZE_IN_DEGREES);
+    long column = (long) Math.floor((location.getLongitude() + 180) / CELL_SIZE_IN_DEGREES);
+    return row + ":" + column + ":" + radiusBucketInKm + ":" + countBucket;
+  }
+
+  /**
+   * Returns the places of a map tile, either from the cache or by fetching and caching them.
+   *
+   * @param tileSizeInDegrees the size of the tiles of the tile's zoom level.
+   * @param row the row of the tile, counted from the south pole.
+   * @param column the column of the tile, counted eastwards from the antimeridian.
+   * @return the places; coveredDistanceInKm is infinite unless the tile held more places than
+   *     could be fetched.
+   */
+  static Candidates getTile(double tileSizeInDegrees, long row, long column) {
+    String key = "PlacesCache:" + getGeneration() + ":tile:" + tileSizeInDegrees + ":" + row
+        + ":" + column;
+
+    Candidates tile = lookup(key);
+    if (tile == null) {
+      tile = fetchTile(tileSizeInDegrees, row, column);
+      store(key, tile);
+    }
+    return tile;
+  }
+
+  /**
+   * Fetches the places of a map tile from the search backend, bypassing the cache.
+   *
+   * @see #getTile(double, long, long)
+   */
+  static Candidates fetchTile(double tileSizeInDegrees, long row, long column) {
+    double south = row * tileSizeInDegrees - 90;
+    double west = column * tileSizeInDegrees - 180;
+    double centerLatitude = south + tileSizeInDegrees / 2;
+    double centerLongitude = west + tileSizeInDegrees / 2;
+
+    // The circle around the tile center through the corner nearest to the equator contains the
+    // whole tile.
+    double edgeLatitude = Math.abs(south) < Math.abs(south + tileSizeInDegrees)
+        ? south : south + tileSizeInDegrees;
+    double halfDiagonalInKm = GeoDistance.haversineKm(
+        centerLatitude, centerLongitude, edgeLatitude, west);
+
+    List<PlaceInfo> places = PlacesHelper.getBackend().getPlaces(
+        new GeoPt((float) centerLatitude, (float) centerLongitude),
+        (long) Math.ceil(halfDiagonalInKm * 1000), MAX_CANDIDATES);
+
+    double coveredDistanceInKm = Double.POSITIVE_INFINITY;
+    if (places.size() >= MAX_CANDIDATES) {
+      GeoPt farthest = places.get(places.size() - 1).getLocation();
+      coveredDistanceInKm = GeoDistance.haversineKm(centerLatitude, centerLongitude,
+          farthest.getLatitude(), farthest.getLongitude());
+    }
+
+    List<PlaceInfo> inTile = new ArrayList<PlaceInfo>();
+    for (PlaceInfo place : places) {
+      GeoPt location = place.getLocation();
+      if ((long) Math.floor((location.getLatitude() + 90) / tileSizeInDegrees) == row
+          && (long) Math.floor((location.getLongitude() + 180) / tileSizeInDegrees) == column) {
+        inTile.add(place);
+      }
+    }
+
+    return new Candidates(inTile, coveredDistanceInKm);
+  }
+
+  /**
+   * Discards all cached results on every instance.
+   */
+  static void invalidate() {
+    try {
+      Long newGeneration = memcache.increment(GENERATION_KEY, 1, 0L);
+      synchronized (PlacesCache.class) {
+        generation = newGeneration == null ? generation + 1 : newGeneration;
+        generationReadTime = System.currentTimeMillis();
+      }
+    } catch (RuntimeException e) {
+      log.warning("Exception when invalidating the places cache: " + e.getMessage());
+    }
+    synchronized (localCache) {
+      localCache.clear();
+    }
+  }
+
+  private static Candidates lookup(String key) {
+    Candidates value;
+    synchronized (localCache) {
+      value = localCache.get(key);
+    }
+    if (value == null) {
+      value = (Candidates) memcache.get(key);
+      if (value != null) {
+        synchronized (localCache) {
+          localCache.put(key, value);
+        }
+      }
+    }
+    return value;
+  }
+
+  private static void store(String key, Candidates value) {
+    memcache.put(key, value, Expiration.byDeltaSeconds(MEMCACHE_EXPIRATION_IN_SECONDS));
+    synchronized (localCache) {
+      localCache.put(key, value);
+    }
+  }
+
+  private static synchronized long getGeneration() {
+    long now = System.currentTimeMillis();
+    if (now - generationReadTime > GENERATION_REFRESH_INTERVAL_IN_MILLIS) {
+      Long value = (Long) memcache.get(GENERATION_KEY);
+      generation = value == null ? 0 : value;
+      generationReadTime = now;
+    }
+    return generation;
+  }
+
+  private static Candidates fetchCandidates(double centerLatitude, double centerLongitude,
+      long radiusInKm, int countBucket) {
+    // Any place within the radius of a caller in this cell is within the radius plus the
+    // cell's half-diagonal of the cell center.
+    double halfDiagonalInKm = GeoDistance.haversineKm(centerLatitude, centerLongitude,
+        centerLatitude + CELL_SIZE_IN_DEGREES / 2, centerLongitude + CELL_SIZE_IN_DEGREES / 2);
+    double searchDistanceInKm = radiusInKm + halfDiagonalInKm;
+    int limit = Math.min(MAX_CANDIDATES, countBucket * CANDIDATES_PER_RESULT);
+
+    List<PlaceInfo> places = PlacesHelper.searchPlaces(
+        new GeoPt((float) centerLatitude, (float) centerLongitude),
+        (long) Math.ceil(searchDistanceInKm * 1000), limit);
+
+    double coveredDistanceInKm = searchDistanceInKm;
+    if (places.size() >= limit) {
+      // The list was truncated, so it is only complete up to the farthest candidate.
+      GeoPt farthest = places.get(places.size() - 1).getLocation();
+      coveredDistanceInKm = GeoDistance.haversineKm(centerLatitude, centerLongitude,
+          farthest.getLatitude(), farthest.getLongitude());
+    }
+
+    return new Candidates(places, coveredDistanceInKm);
+  }
+
+  /**
+   * Computes the places within a given distance from a location, closest first, from the
+   * candidates gathered around a nearby center.
+   *
+   * @param distanceFromCenterInKm the distance from the location to the candidates' center.
+   * @return the places, or null if the candidates may not hold all of them.
+   */
+  static List<PlaceInfo> getPlacesFromCandidates(Candidates candidates, GeoPt location,
+      double distanceInKm, int resultCount, double distanceFromCenterInKm) {
+    List<PlaceInfo> places = new ArrayList<PlaceInfo>();
+    for (int i = 0; i < candidates.placeIds.length; i++) {
+      double distance = GeoDistance.haversineKm(location.getLatitude(),
+          location.getLongitude(), candidates.latitudes[i], candidates.longitudes[i]);
+      if (distance <= distanceInKm) {
+        places.add(candidates.getPlaceInfo(i, distance));
+      }
+    }
+
+    Collections.sort(places, new Comparator<PlaceInfo>() {
+      @Override
+      public int compare(PlaceInfo a, PlaceInfo b) {
+        return Double.compare(a.getDistanceInKilometers(), b.getDistanceInKilometers());
+      }
+    });
+    if (places.size() > resultCount) {
+      places = new ArrayList<PlaceInfo>(places.subList(0, resultCount));
+    }
+
+    // The candidates hold every place up to coveredDistanceInKm from the cell center, so the
+    // answer is exact only if everything the caller could need lies within that distance.
+    double neededDistanceInKm = places.size() < resultCount
+        ? distanceInKm : places.get(places.size() - 1).getDistanceInKilometers();
+    if (neededDistanceInKm + distanceFromCenterInKm >= candidates.coveredDistanceInKm) {
+      return null;
+    }
+
+    return places;
+  }
+
+  private static long bucket(long[] buckets, long value) {
+    for (long bucket : buckets) {
+      if (value <= bucket) {
+        return bucket;
+      }
+    }
+    return -1;
+  }
+
+  private static long bucket(int[] buckets, int value) {
+    for (int bucket : buckets) {
+      if (value <= bucket) {
+        return bucket;
+      }
+    }
+    return -1;
+  }
+}
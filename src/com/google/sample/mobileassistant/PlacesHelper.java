@@ -14,138 +14,422 @@
  */
 package com.google.sample.mobileassistant;
 
+import static com.google.appengine.api.taskqueue.TaskOptions.Builder.withUrl;
 import static com.google.appengine.api.utils.SystemProperty.Environment.Value.Development;
 import static com.google.appengine.api.utils.SystemProperty.environment;
 
+import com.google.appengine.api.ThreadManager;
 import com.google.appengine.api.datastore.GeoPt;
-import com.google.appengine.api.search.Document;
-import com.google.appengine.api.search.Field;
-import com.google.appengine.api.search.GeoPoint;
-import com.google.appengine.api.search.Index;
-import com.google.appengine.api.search.IndexSpec;
-import com.google.appengine.api.search.Query;
-import com.google.appengine.api.search.QueryOptions;
-import com.google.appengine.api.search.Results;
-import com.google.appengine.api.search.ScoredDocument;
-import com.google.appengine.api.search.SearchServiceFactory;
-import com.google.appengine.api.search.SortExpression;
-import com.google.appengine.api.search.SortOptions;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+
 /**
  * Helper class for geo-proximity related management of Places.
  */
 class PlacesHelper {
   private static final Logger log = Logger.getLogger(PlacesHelper.class.getName());
-  private static final String INDEX_NAME = "Places";
 
-  static Index getIndex() {
-    IndexSpec indexSpec = IndexSpec.newBuilder().setName(INDEX_NAME).build();
-    return SearchServiceFactory.getSearchService().getIndex(indexSpec);
-  }
+  // Selects how nearby places are found: "search" queries the Search API index and "memory"
+  // answers in-process from the Place entities. The development server always uses "memory",
+  // because the Search API does not support geo queries there.
+  private static final String BACKEND = environment.value() == Development ? "memory"
+      : System.getProperty("mobileassistant.places.backend", "search");
 
-  static Document buildDocument(
-      String placeId, String placeName, String placeAddress, GeoPt location) {
-    GeoPoint geoPoint = new GeoPoint(location.getLatitude(), location.getLongitude());
+  // Map tile sizes from the finest to the coarsest zoom level, and the maximum number of tiles
+  // a viewport query may span.
+  private static final double[] TILE_SIZES_IN_DEGREES = {0.01, 0.04, 0.16, 0.64, 2.56};
+  private static final int MAX_TILES_PER_VIEWPORT = 64;
 
-    Document.Builder builder = Document.newBuilder()
-        .addField(Field.newBuilder().setName("id").setText(placeId))
-        .addField(Field.newBuilder().setName("name").setText(placeName))
-        .addField(Field.newBuilder().setName("address").setText(placeAddress))
-        .addField(Field.newBuilder().setName("place_location").setGeoPoint(geoPoint));
+  private static final int MAX_BATCH_THREADS = 10;
 
-    // geo-location doesn't work under dev_server, so let's add another
-    // field to use for retrieving documents
-    if (environment.value() == Development) {
-      builder.addField(Field.newBuilder().setName("value").setNumber(1));
-    }
+  private static final String INDEX_QUEUE = "places-index-queue";
+
+  // Radii searched in turn before the requested one, when the cost of a search grows with its
+  // radius, and the share of early-stopped searches for which the candidates avoided are
+  // counted in a task. Off unless enabled for the deployment.
+  private static final boolean ADAPTIVE_RADIUS = Boolean.parseBoolean(
+      System.getProperty("mobileassistant.places.adaptiveRadius", "false"));
+  private static final long[] RING_RADII_IN_METERS = {1000, 5000, 25000, 100000};
+  private static final double AVOIDED_CANDIDATES_SAMPLE_RATE = 0.01;
 
-    Document place = builder.build();
+  private static final PlaceSearchBackend backend = "memory".equals(BACKEND)
+      ? new InMemoryPlaceSearchBackend() : new SearchApiPlaceSearchBackend();
 
-    return place;
+  static PlaceSearchBackend getBackend() {
+    return backend;
   }
 
   static List<PlaceInfo> getPlaces(GeoPt location, long distanceInMeters, int resultCount) {
+    // Only remote searches are worth caching.
+    if (backend instanceof SearchApiPlaceSearchBackend) {
+      List<PlaceInfo> places =
+          NearestPlacesTable.getPlaces(location, distanceInMeters, resultCount);
+      if (places != null) {
+        return places;
+      }
+      places = PlacesCache.getPlaces(location, distanceInMeters, resultCount);
+      if (places != null) {
+        return places;
+      }
+    }
 
-    // TODO(user): Use memcache
+    return searchPlaces(location, distanceInMeters, resultCount);
+  }
 
-    String geoPoint = "geopoint(" + location.getLatitude() + ", " + location.getLongitude() + ")";
+  /**
+   * Finds places within a given distance from a location with the search backend, bypassing the
+   * caches.
+   *
+   * <p>In adaptive radius mode, rings of increasing radius are searched first, and the search
+   * stops at the first ring that holds resultCount places: they are then the closest places
+   * within the whole distance as well. The number of rings used and, for a sample of the
+   * searches, the number of candidates that did not have to be ranked are counted in
+   * {@link PlaceMetrics}, the latter by a task.
+   */
+  static List<PlaceInfo> searchPlaces(GeoPt location, long distanceInMeters, int resultCount) {
+    boolean adaptive = ADAPTIVE_RADIUS && (backend instanceof SearchApiPlaceSearchBackend
+        || ((InMemoryPlaceSearchBackend) backend).isCostProportionalToRadius());
+    if (!adaptive) {
+      return backend.getPlaces(location, distanceInMeters, resultCount);
+    }
 
-    String query = "distance(place_location, " + geoPoint + ") < " + distanceInMeters;
-    String locExpr = "distance(place_location, " + geoPoint + ")";
+    int rings = 0;
+    for (long ringInMeters : RING_RADII_IN_METERS) {
+      if (ringInMeters >= distanceInMeters) {
+        break;
+      }
+      rings++;
+      List<PlaceInfo> places = backend.getPlaces(location, ringInMeters, resultCount);
+      if (places.size() >= resultCount) {
+        PlaceMetrics.add("search.rings." + rings, 1);
+        if (Math.random() < AVOIDED_CANDIDATES_SAMPLE_RATE) {
+          scheduleAvoidedCandidatesCount(location, distanceInMeters, ringInMeters);
+        }
+        return places;
+      }
+    }
 
-    SortExpression sortExpr = SortExpression.newBuilder()
-        .setExpression(locExpr)
-        .setDirection(SortExpression.SortDirection.ASCENDING)
-        .setDefaultValueNumeric(distanceInMeters + 1)
-        .build();
-    Query searchQuery = Query.newBuilder().setOptions(QueryOptions.newBuilder()
-        .setSortOptions(SortOptions.newBuilder().addSortExpression(sortExpr))).build(query);
-    Results<ScoredDocument> results = getIndex().search(searchQuery);
+    PlaceMetrics.add("search.rings." + (rings + 1), 1);
+    return backend.getPlaces(location, distanceInMeters, resultCount);
+  }
 
-    if (results.getNumberFound() == 0) {
-      // geo-location doesn't work under dev_server
-      if (environment.value() == Development) {
-        // return all documents
-        results = getIndex().search("value > 0");
+  /**
+   * Finds a page of places within a given distance from a location, in the order of distance
+   * and then place id.
+   *
+   * <p>The cursor holds the distance and place id of the last place of the previous page, so
+   * each page only costs a query for its own size, whatever its position.
+   *
+   * @param cursor the cursor returned with the previous page, or null for the first page.
+   * @return the page, or null if the cursor is invalid.
+   */
+  static PlacePage getPlacesPage(
+      GeoPt location, long distanceInMeters, int resultCount, String cursor) {
+    double afterDistanceInKm = -1;
+    String afterPlaceId = null;
+    if (cursor != null) {
+      int separator = cursor.indexOf(':');
+      if (separator < 0) {
+        return null;
       }
+      try {
+        afterDistanceInKm = Double.parseDouble(cursor.substring(0, separator));
+      } catch (NumberFormatException e) {
+        return null;
+      }
+      afterPlaceId = cursor.substring(separator + 1);
     }
 
-    List<PlaceInfo> places = new ArrayList<PlaceInfo>();
+    List<PlaceInfo> places = backend.getPlacesAfter(
+        location, distanceInMeters, afterDistanceInKm, afterPlaceId, resultCount);
 
-    for (ScoredDocument document : results) {
-      if (places.size() >= resultCount) {
+    PlacePage page = new PlacePage();
+    page.setPlaces(places);
+    if (places.size() == resultCount) {
+      PlaceInfo last = places.get(places.size() - 1);
+      page.setNextCursor(last.getDistanceInKilometers() + ":" + last.getPlaceId());
+    }
+    return page;
+  }
+
+  /**
+   * Finds the places near several locations at once.
+   *
+   * <p>Queries that would be answered from the same cached candidates are grouped, and each group
+   * runs as one task: its first query fetches the shared candidates and the others are answered
+   * from them. The groups run concurrently on request threads.
+   *
+   * @param locations the centers of the searches.
+   * @param distancesInMeters the maximum distance from each location.
+   * @param resultCounts the maximum number of places to be returned for each location.
+   * @return for each location, the places found, closest first.
+   */
+  static List<List<PlaceInfo>> getPlacesBatch(final List<GeoPt> locations,
+      final List<Long> distancesInMeters, final List<Integer> resultCounts) {
+    Map<String, List<Integer>> groups = new LinkedHashMap<String, List<Integer>>();
+    for (int i = 0; i < locations.size(); i++) {
+      String key = backend instanceof SearchApiPlaceSearchBackend ? PlacesCache.getCandidatesKey(
+          locations.get(i), distancesInMeters.get(i), resultCounts.get(i)) : null;
+      if (key == null) {
+        key = "query:" + i;
+      }
+      List<Integer> group = groups.get(key);
+      if (group == null) {
+        group = new ArrayList<Integer>();
+        groups.put(key, group);
+      }
+      group.add(i);
+    }
+
+    final List<List<PlaceInfo>> results = new ArrayList<List<PlaceInfo>>(
+        Collections.<List<PlaceInfo>>nCopies(locations.size(), null));
+    ExecutorService executor = Executors.newFixedThreadPool(
+        Math.min(groups.size(), MAX_BATCH_THREADS), ThreadManager.currentRequestThreadFactory());
+    try {
+      List<Future<?>> futures = new ArrayList<Future<?>>();
+      for (final List<Integer> group : groups.values()) {
+        futures.add(executor.submit(new Runnable() {
+          @Override
+          public void run() {
+            for (int i : group) {
+              List<PlaceInfo> places =
+                  getPlaces(locations.get(i), distancesInMeters.get(i), resultCounts.get(i));
+              synchronized (results) {
+                results.set(i, places);
+              }
+            }
+          }
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+
+    return results;
+  }
+
+  /**
+   * Finds the places inside a map viewport.
+   *
+   * <p>The viewport is covered with fixed map tiles of the finest zoom level that needs at most
+   * {@link #MAX_TILES_PER_VIEWPORT} tiles. Each tile is answered separately and, for the Search
+   * API backend, cached, so a panned viewport only fetches the newly exposed tiles.
+   *
+   * @param south the southern edge of the viewport.
+   * @param west the western edge of the viewport. It may be larger than east if the viewport
+   *     crosses the antimeridian.
+   * @param north the northern edge of the viewport.
+   * @param east the eastern edge of the viewport.
+   * @return the places inside the viewport, closest to its center first, and whether a tile held
+   *     more places than could be fetched; or null if the viewport is too large.
+   */
+  static PlacesInViewport getPlacesInViewport(
+      double south, double west, double north, double east) {
+    double width = east >= west ? east - west : east - west + 360;
+
+    double tileSize = -1;
+    long firstRow = 0;
+    long rows = 0;
+    long firstColumn = 0;
+    long columns = 0;
+    for (double size : TILE_SIZES_IN_DEGREES) {
+      firstRow = (long) Math.floor((south + 90) / size);
+      rows = (long) Math.floor((Math.min(north, 90 - size / 2) + 90) / size) - firstRow + 1;
+      firstColumn = (long) Math.floor((west + 180) / size);
+      columns = (long) Math.floor((west + width + 180) / size) - firstColumn + 1;
+      if (rows * columns <= MAX_TILES_PER_VIEWPORT) {
+        tileSize = size;
         break;
       }
+    }
+    if (tileSize < 0) {
+      return null;
+    }
+
+    long columnsAroundTheGlobe = Math.round(360 / tileSize);
+    double centerLatitude = (south + north) / 2;
+    double centerLongitude = west + width / 2;
+    boolean cached = backend instanceof SearchApiPlaceSearchBackend;
+
+    List<PlaceInfo> places = new ArrayList<PlaceInfo>();
+    boolean truncated = false;
+    for (long row = firstRow; row < firstRow + rows; row++) {
+      for (long column = firstColumn; column < firstColumn + columns; column++) {
+        long wrappedColumn = column % columnsAroundTheGlobe;
+        PlacesCache.Candidates tile = cached
+            ? PlacesCache.getTile(tileSize, row, wrappedColumn)
+            : PlacesCache.fetchTile(tileSize, row, wrappedColumn);
+        if (tile.coveredDistanceInKm != Double.POSITIVE_INFINITY) {
+          truncated = true;
+          log.warning("Map tile " + tileSize + ":" + row + ":" + wrappedColumn
+              + " has more places than can be returned");
+        }
 
-      GeoPoint p = document.getOnlyField("place_location").getGeoPoint();
-
-      PlaceInfo place = new PlaceInfo();
-      place.setplaceID(document.getOnlyField("id").getText());
-      place.setName(document.getOnlyField("name").getText());
-      place.setAddress(document.getOnlyField("address").getText());
-
-      place.setLocation(new GeoPt((float) p.getLatitude(), (float) p.getLongitude()));
-
-      // GeoPoints are not implemented on dev server and latitude and longitude are set to zero
-      // But since those are doubles let's play safe
-      // and use double comparison with epsilon set to 0.0001
-      if (Math.abs(p.getLatitude()) <= 0.0001 && Math.abs(p.getLongitude()) <= 0.0001) {
-        // set a fake distance of 5+ km
-        place.setDistanceInKilometers(5 + places.size());
-      } else {
-        double distance = distanceInMeters / 1000;
-        try {
-          distance = getDistanceInKm(
-              p.getLatitude(), p.getLongitude(), location.getLatitude(), location.getLongitude());
-        } catch (Exception e) {
-          log.warning("Exception when calculating a distance: " + e.getMessage());
+        for (int i = 0; i < tile.size(); i++) {
+          double latitude = tile.latitudes[i];
+          double longitude = tile.longitudes[i];
+          double eastOfWest = longitude >= west ? longitude - west : longitude - west + 360;
+          if (latitude >= south && latitude <= north && eastOfWest <= width) {
+            places.add(tile.getPlaceInfo(i, GeoDistance.haversineKm(
+                centerLatitude, centerLongitude, latitude, longitude)));
+          }
         }
+      }
+    }
 
-        place.setDistanceInKilometers(distance);
+    Collections.sort(places, new Comparator<PlaceInfo>() {
+      @Override
+      public int compare(PlaceInfo a, PlaceInfo b) {
+        return Double.compare(a.getDistanceInKilometers(), b.getDistanceInKilometers());
       }
+    });
+
+    PlacesInViewport result = new PlacesInViewport();
+    result.setPlaces(places);
+    result.setTruncated(truncated);
+    return result;
+  }
 
-      places.add(place);
+  /**
+   * Discards cached search results and records the changed places in the nearest places table
+   * after they have been put into or removed from the search index.
+   *
+   * @param putPlaces the places put, with their current contents.
+   * @param removedPlaceIds the ids of the places removed.
+   */
+  static void onPlacesChanged(List<Place> putPlaces, List<String> removedPlaceIds) {
+    PlacesCache.invalidate();
+    try {
+      NearestPlacesTable.recordChanges(putPlaces, removedPlaceIds);
+    } catch (RuntimeException e) {
+      log.warning("Exception when recording changed places: " + e.getMessage());
+      NearestPlacesTable.disable();
     }
+  }
 
-    return places;
+  /**
+   * Writes a place snapshot from all places, for the instances of the "memory" backend to
+   * replace their indexes with.
+   */
+  static void writePlaceSnapshot() {
+    long loadTime = System.currentTimeMillis();
+    PlaceSnapshot.write(CompactPlaceStore.build(loadAllPlaces(), true), loadTime);
   }
 
-  static double getDistanceInKm(
-      double latitude1, double longitude1, double latitude2, double longitude2) {
-    final double earthRadius = 6378.1; // kilometers
+  /**
+   * Prepares a new instance to answer place queries.
+   */
+  static void warmUp() {
+    if (backend instanceof InMemoryPlaceSearchBackend) {
+      ((InMemoryPlaceSearchBackend) backend).warmUp();
+    }
+  }
 
-    double lat1 = Math.toRadians(latitude1);
-    double lat2 = Math.toRadians(latitude2);
-    double long1 = Math.toRadians(longitude1);
-    double long2 = Math.toRadians(longitude2);
+  /**
+   * Adds a task that brings the search document of a place in line with its Place entity,
+   * removing the document if the entity no longer exists.
+   */
+  static void scheduleIndexSync(String placeId) {
+    Queue queue = QueueFactory.getQueue(INDEX_QUEUE);
+    queue.add(withUrl("/tasks/placeindex").param("placeId", placeId));
+  }
+
+  /**
+   * Adds a task that counts the candidates a search stopped at a ring did not have to rank,
+   * without waiting for the task to be added.
+   */
+  private static void scheduleAvoidedCandidatesCount(
+      GeoPt location, long distanceInMeters, long ringInMeters) {
+    QueueFactory.getQueue(INDEX_QUEUE).addAsync(withUrl("/tasks/placemetrics")
+        .param("latitude", Float.toString(location.getLatitude()))
+        .param("longitude", Float.toString(location.getLongitude()))
+        .param("distanceInMeters", Long.toString(distanceInMeters))
+        .param("ringInMeters", Long.toString(ringInMeters)));
+  }
+
+  /**
+   * Counts in {@link PlaceMetrics} the candidates that a search stopped at a ring did not have to
+   * rank.
+   */
+  static void countAvoidedCandidates(GeoPt location, long distanceInMeters, long ringInMeters) {
+    long avoided = backend.countPlaces(location, distanceInMeters)
+        - backend.countPlaces(location, ringInMeters);
+    PlaceMetrics.add("search.sampled", 1);
+    PlaceMetrics.add("search.sampled.candidatesAvoided", Math.max(0, avoided));
+  }
 
-    double dist = earthRadius * Math.acos(Math.sin(lat1) * Math.sin(lat2) + Math.cos(lat1)
-        * Math.cos(lat2) * Math.cos(Math.abs(long1 - long2)));
+  /**
+   * @return the place with the given place id, or null if there is none.
+   */
+  @SuppressWarnings({"cast", "unchecked"})
+  static Place loadPlace(String placeId) {
+    EntityManager mgr = EMF.get().createEntityManager();
+    try {
+      Query query = mgr.createQuery("select from Place as Place where placeId = :placeId")
+          .setParameter("placeId", placeId);
+      List<Place> places = (List<Place>) query.getResultList();
+      return places.isEmpty() ? null : places.get(0);
+    } finally {
+      mgr.close();
+    }
+  }
 
-    return dist;
+  /**
+   * @return the places inserted or updated since the given date.
+   */
+  @SuppressWarnings({"cast", "unchecked"})
+  static List<Place> loadPlacesModifiedSince(Date date) {
+    EntityManager mgr = EMF.get().createEntityManager();
+    List<Place> places = new ArrayList<Place>();
+    try {
+      Query query = mgr.createQuery(
+          "select from Place as Place where modifiedDate >= :modifiedDate")
+          .setParameter("modifiedDate", date);
+      for (Place place : (List<Place>) query.getResultList()) {
+        places.add(place);
+      }
+    } finally {
+      mgr.close();
+    }
+    return places;
+  }
+
+  @SuppressWarnings({"cast", "unchecked"})
+  static List<Place> loadAllPlaces() {
+    EntityManager mgr = EMF.get().createEntityManager();
+    List<Place> places = new ArrayList<Place>();
+    try {
+      Query query = mgr.createQuery("select from Place as Place");
+      for (Place place : (List<Place>) query.getResultList()) {
+        places.add(place);
+      }
+    } finally {
+      mgr.close();
+    }
+    return places;
   }
 }
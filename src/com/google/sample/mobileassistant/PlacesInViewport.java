@@ -0,0 +1,48 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.mobileassistant;
+
+import java.util.List;
+
+/**
+ * The places inside a map viewport.
+ */
+public class PlacesInViewport {
+
+  private List<PlaceInfo> places;
+
+  private boolean truncated;
+
+  public List<PlaceInfo> getPlaces() {
+    return places;
+  }
+
+  public void setPlaces(List<PlaceInfo> places) {
+    this.places = places;
+  }
+
+  /**
+   * @return whether some parts of the viewport hold more places than could be returned, in which
+   *     case only the places closest to the centers of those parts are included. Zooming in
+   *     returns all of them.
+   */
+  public boolean isTruncated() {
+    return truncated;
+  }
+
+  public void setTruncated(boolean truncated) {
+    this.truncated = truncated;
+  }
+}
@@ -0,0 +1,249 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.mobileassistant;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.search.GetIndexesRequest;
+import com.google.appengine.api.search.Index;
+import com.google.appengine.api.search.IndexSpec;
+import com.google.appengine.api.search.SearchService;
+import com.google.appengine.api.search.SearchServiceFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Versions of the Places search index, for rebuilding the index without downtime.
+ *
+ * <p>A rebuild writes into a new index, Places_v{n}, while queries keep reading the active one.
+ * Finishing the rebuild switches the active version, a single datastore entity that is cached
+ * in memcache and re-read by each instance every few seconds, and deletes the documents of the
+ * versions other than the new active one and the one it replaces. The replaced version is kept
+ * until the next rebuild for the queries of instances that have not seen the switch yet.
+ *
+ * <p>While a rebuild is in progress, incremental updates are written to both the active and the
+ * new version, so that the new version does not miss them.
+ */
+class PlacesIndexVersions {
+  private static final Logger log = Logger.getLogger(PlacesIndexVersions.class.getName());
+
+  // Version 0 is the unversioned index used before versioning was introduced.
+  private static final String INDEX_NAME = "Places";
+
+  private static final String POINTER_KIND = "PlacesIndex";
+  private static final String POINTER_NAME = "pointer";
+  private static final String ACTIVE_PROPERTY = "active";
+  private static final String BUILDING_PROPERTY = "building";
+  private static final String PREVIOUS_PROPERTY = "previous";
+  private static final String POINTER_MEMCACHE_KEY = "PlacesIndex:pointer";
+  private static final long POINTER_REFRESH_INTERVAL_IN_MILLIS = 5 * 1000;
+  private static final int POINTER_MEMCACHE_EXPIRATION_IN_SECONDS = 60;
+
+  private static final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+
+  // active, building (0 if none) and previous (-1 if none) versions
+  private static long[] pointer;
+  private static long pointerReadTime;
+
+  /**
+   * @return the index that queries should read.
+   */
+  static Index getActiveIndex() {
+    return getIndex(getPointer()[0]);
+  }
+
+  /**
+   * @return the indexes that incremental updates should be written to.
+   */
+  static List<Index> getWriteIndexes() {
+    long[] current = getPointer();
+    List<Index> indexes = new ArrayList<Index>();
+    indexes.add(getIndex(current[0]));
+    if (current[1] != 0) {
+      indexes.add(getIndex(current[1]));
+    }
+    return indexes;
+  }
+
+  static Index getIndex(long version) {
+    String name = version == 0 ? INDEX_NAME : INDEX_NAME + "_v" + version;
+    return SearchServiceFactory.getSearchService().getIndex(
+        IndexSpec.newBuilder().setName(name).build());
+  }
+
+  /**
+   * Starts a rebuild into a new, empty version. A rebuild that was in progress is abandoned.
+   *
+   * @return the new version.
+   */
+  static long beginRebuild() {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    Transaction txn = datastore.beginTransaction();
+    try {
+      long[] current = readPointer(datastore, txn);
+      long version = Math.max(Math.max(current[0], current[1]), current[2]) + 1;
+      long[] updated = new long[] {current[0], version, current[2]};
+      writePointer(datastore, txn, updated);
+      txn.commit();
+      publishPointer(updated);
+      log.info("Started rebuilding the search index into version " + version);
+      return version;
+    } finally {
+      if (txn.isActive()) {
+        txn.rollback();
+      }
+    }
+  }
+
+  /**
+   * Makes a rebuilt version the active one and schedules the deletion of old versions.
+   *
+   * @throws IllegalStateException if another rebuild has been started since.
+   */
+  static void finishRebuild(long version) {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    Transaction txn = datastore.beginTransaction();
+    long[] updated;
+    try {
+      long[] current = readPointer(datastore, txn);
+      if (current[1] != version) {
+        throw new IllegalStateException("Version " + version + " is not being built");
+      }
+      updated = new long[] {version, 0, current[0]};
+      writePointer(datastore, txn, updated);
+      txn.commit();
+      publishPointer(updated);
+    } finally {
+      if (txn.isActive()) {
+        txn.rollback();
+      }
+    }
+    log.info("Switched the search index to version " + version);
+
+    garbageCollect(updated);
+  }
+
+  /**
+   * Adds tasks that delete the documents of the versions that are neither active, being built
+   * nor the previous active version. The Search API has no call to delete an index itself.
+   */
+  private static void garbageCollect(long[] current) {
+    SearchService searchService = SearchServiceFactory.getSearchService();
+    for (Index index : searchService.getIndexes(
+        GetIndexesRequest.newBuilder().setIndexNamePrefix(INDEX_NAME))) {
+      long version = getVersion(index.getName());
+      if (version < 0 || version == current[0] || version == current[1]
+          || version == current[2]) {
+        continue;
+      }
+      try {
+        PlaceIndexPurge.schedule(index.getName());
+        log.info("Scheduled the deletion of search index version " + version);
+      } catch (RuntimeException e) {
+        log.warning("Cannot delete search index version " + version + ": " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * @return whether an index is the active version, the version being built or the previous
+   *     version, which instances that have not seen the last switch still read. The pointer is
+   *     read from the datastore rather than from a cache.
+   */
+  static boolean isInUse(String indexName) {
+    long version = getVersion(indexName);
+    if (version < 0) {
+      return false;
+    }
+    long[] current = readPointer(DatastoreServiceFactory.getDatastoreService(), null);
+    return version == current[0] || version == current[1] || version == current[2];
+  }
+
+  /**
+   * @return the version of the index with the given name, or -1 if it is not a Places index.
+   */
+  private static long getVersion(String indexName) {
+    if (INDEX_NAME.equals(indexName)) {
+      return 0;
+    }
+    String prefix = INDEX_NAME + "_v";
+    if (!indexName.startsWith(prefix)) {
+      return -1;
+    }
+    try {
+      return Long.parseLong(indexName.substring(prefix.length()));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private static synchronized long[] getPointer() {
+    long now = System.currentTimeMillis();
+    if (pointer == null || now - pointerReadTime > POINTER_REFRESH_INTERVAL_IN_MILLIS) {
+      long[] value = (long[]) memcache.get(POINTER_MEMCACHE_KEY);
+      if (value == null) {
+        value = readPointer(DatastoreServiceFactory.getDatastoreService(), null);
+        memcache.put(POINTER_MEMCACHE_KEY, value,
+            Expiration.byDeltaSeconds(POINTER_MEMCACHE_EXPIRATION_IN_SECONDS));
+      }
+      pointer = value;
+      pointerReadTime = now;
+    }
+    return pointer;
+  }
+
+  private static long[] readPointer(DatastoreService datastore, Transaction txn) {
+    Key key = KeyFactory.createKey(POINTER_KIND, POINTER_NAME);
+    try {
+      Entity entity = datastore.get(txn, key);
+      return new long[] {(Long) entity.getProperty(ACTIVE_PROPERTY),
+          (Long) entity.getProperty(BUILDING_PROPERTY),
+          (Long) entity.getProperty(PREVIOUS_PROPERTY)};
+    } catch (EntityNotFoundException e) {
+      return new long[] {0, 0, -1};
+    }
+  }
+
+  private static void writePointer(DatastoreService datastore, Transaction txn, long[] value) {
+    Entity entity = new Entity(POINTER_KIND, POINTER_NAME);
+    entity.setUnindexedProperty(ACTIVE_PROPERTY, value[0]);
+    entity.setUnindexedProperty(BUILDING_PROPERTY, value[1]);
+    entity.setUnindexedProperty(PREVIOUS_PROPERTY, value[2]);
+    datastore.put(txn, entity);
+  }
+
+  /**
+   * Makes a committed pointer visible to this instance at once and to others within the
+   * pointer refresh interval.
+   */
+  private static void publishPointer(long[] value) {
+    memcache.put(POINTER_MEMCACHE_KEY, value,
+        Expiration.byDeltaSeconds(POINTER_MEMCACHE_EXPIRATION_IN_SECONDS));
+    synchronized (PlacesIndexVersions.class) {
+      pointer = value;
+      pointerReadTime = System.currentTimeMillis();
+    }
+  }
+}
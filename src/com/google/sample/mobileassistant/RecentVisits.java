@@ -0,0 +1,172 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.mobileassistant;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.CasValues;
+import com.google.appengine.api.memcache.MemcacheService.IdentifiableValue;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * The times of recent check-ins of users into places, kept in memcache to tell whether a user
+ * checked into a place shortly before a check-in without a datastore query.
+ *
+ * <p>The times of the latest {@link #TIMES_KEPT} check-ins of a user into a place are kept
+ * under one key, which expires {@link #RETENTION_IN_MILLIS} after the latest of them, and are
+ * updated with compare-and-set so that concurrent check-ins are not lost. Memcache may evict a
+ * key at any time, so a question is only answered when the key still holds the check-in it is
+ * about; otherwise callers fall back to the datastore. A key that could not be updated is
+ * deleted, for the same reason. A key evicted and added again between two check-ins can still
+ * hide the first one, which only costs a duplicate answer to the second.
+ */
+class RecentVisits {
+  private static final Logger log = Logger.getLogger(RecentVisits.class.getName());
+
+  private static final String KEY_PREFIX = "RecentVisits:";
+  private static final int TIMES_KEPT = 4;
+  // Longer than any period asked about.
+  private static final long RETENTION_IN_MILLIS = 60 * 60 * 1000;
+  private static final int MAX_UPDATE_ATTEMPTS = 3;
+
+  private static final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+
+  /**
+   * Records stored check-ins.
+   */
+  static void record(List<CheckIn> checkins) {
+    Map<String, List<Long>> added = new HashMap<String, List<Long>>();
+    for (CheckIn checkin : checkins) {
+      String key = getKey(checkin.getUserEmail(), checkin.getPlaceId());
+      List<Long> times = added.get(key);
+      if (times == null) {
+        times = new ArrayList<Long>();
+        added.put(key, times);
+      }
+      times.add(checkin.getCheckinDate().getTime());
+    }
+
+    Expiration expiration = Expiration.byDeltaMillis((int) RETENTION_IN_MILLIS);
+    try {
+      for (int attempt = 1; attempt <= MAX_UPDATE_ATTEMPTS && !added.isEmpty(); attempt++) {
+        Map<String, IdentifiableValue> current = memcache.getIdentifiables(added.keySet());
+        Map<String, CasValues> updates = new HashMap<String, CasValues>();
+        Map<String, long[]> newValues = new HashMap<String, long[]>();
+        for (Map.Entry<String, List<Long>> entry : added.entrySet()) {
+          IdentifiableValue value = current.get(entry.getKey());
+          if (value != null) {
+            updates.put(entry.getKey(), new CasValues(value,
+                merge((long[]) value.getValue(), entry.getValue()), expiration));
+          } else {
+            newValues.put(entry.getKey(), merge(null, entry.getValue()));
+          }
+        }
+        Set<String> stored = new HashSet<String>(memcache.putIfUntouched(updates));
+        stored.addAll(memcache.putAll(newValues, expiration, SetPolicy.ADD_ONLY_IF_NOT_PRESENT));
+        added.keySet().removeAll(stored);
+      }
+      if (!added.isEmpty()) {
+        memcache.deleteAll(added.keySet());
+      }
+    } catch (RuntimeException e) {
+      log.warning("Exception when recording recent visits: " + e.getMessage());
+      try {
+        memcache.deleteAll(added.keySet());
+      } catch (RuntimeException e2) {
+        // The keys expire on their own.
+      }
+    }
+  }
+
+  /**
+   * Records a stored check-in.
+   */
+  static void record(CheckIn checkin) {
+    record(Collections.singletonList(checkin));
+  }
+
+  /**
+   * Tells whether a user checked into a place within a period before a given check-in.
+   *
+   * @param checkinTime the time of the check-in, in milliseconds since the epoch.
+   * @param periodInMillis the length of the period.
+   * @return whether there was another check-in in the period, or null if unknown.
+   */
+  static Boolean hasVisitedBefore(
+      String userEmail, String placeId, long checkinTime, long periodInMillis) {
+    if (periodInMillis > RETENTION_IN_MILLIS) {
+      return null;
+    }
+    long[] times;
+    try {
+      times = (long[]) memcache.get(getKey(userEmail, placeId));
+    } catch (RuntimeException e) {
+      log.warning("Exception when reading recent visits: " + e.getMessage());
+      return null;
+    }
+    if (times == null) {
+      return null;
+    }
+
+    boolean found = false;
+    for (long time : times) {
+      if (time == checkinTime) {
+        found = true;
+      } else if (time < checkinTime && time >= checkinTime - periodInMillis) {
+        return true;
+      }
+    }
+    // Check-ins in the period may have been dropped to keep later ones.
+    boolean complete = times.length < TIMES_KEPT || times[0] < checkinTime - periodInMillis;
+    return found && complete ? Boolean.FALSE : null;
+  }
+
+  private static String getKey(String userEmail, String placeId) {
+    return KEY_PREFIX + userEmail + " " + placeId;
+  }
+
+  /**
+   * @return the latest times of the given ones that are not too old, in ascending order.
+   */
+  private static long[] merge(long[] times, List<Long> added) {
+    long oldest = System.currentTimeMillis() - RETENTION_IN_MILLIS;
+    List<Long> merged = new ArrayList<Long>(added);
+    if (times != null) {
+      for (long time : times) {
+        merged.add(time);
+      }
+    }
+    Collections.sort(merged);
+    int from = merged.size();
+    while (from > 0 && merged.size() - from < TIMES_KEPT && merged.get(from - 1) >= oldest) {
+      from--;
+    }
+    long[] result = new long[merged.size() - from];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = merged.get(from + i);
+    }
+    return result;
+  }
+}
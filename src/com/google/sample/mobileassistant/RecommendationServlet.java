@@ -14,13 +14,29 @@
  */
 package com.google.sample.mobileassistant;
 
+import static com.google.appengine.api.taskqueue.TaskOptions.Builder.withUrl;
+
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskOptions;
+
 import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.IllegalFormatException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.TimeZone;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 
 import javax.persistence.EntityManager;
 import javax.servlet.http.HttpServlet;
@@ -33,6 +49,11 @@ import javax.servlet.http.HttpServletResponse;
  */
 public class RecommendationServlet extends HttpServlet {
   private static final long serialVersionUID = 1L;
+
+  static final String QUEUE = "recommendations-queue";
+  // The maximum number of tasks a single Queue.add call can take.
+  private static final int MAX_TASKS_PER_CALL = 100;
+  private static final Pattern TASK_NAME_PART = Pattern.compile("[a-zA-Z0-9_-]{1,100}");
   
   // Two minutes for recommendation expiration is reasonable for demo purposes. 
   // For production it will more likely be several hours. 
@@ -45,18 +66,17 @@ public class RecommendationServlet extends HttpServlet {
   public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
     String placeId = req.getParameter("placeId");
     String userEmail = req.getParameter("userEmail");
+    String checkinDate = req.getParameter("checkinDate");
+    // Tasks added before the parameter was introduced are for recent checkins.
+    long checkinTime =
+        checkinDate == null ? System.currentTimeMillis() : Long.parseLong(checkinDate);
 
-    // Skip generating new recommendations if user checked into the same
-    // place within the recommendation expiration time
-    // In other words, if the number of checkins in this time window is
-    // larger than 1 (one checkin is the "current" one)
-    Calendar validityTimeWindow = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
-    validityTimeWindow.add(Calendar.MINUTE, -RECOMMENDATION_EXPIRATION_IN_MINUTES);
-    if (CheckInUtil.getCheckinsForUser(userEmail, placeId, validityTimeWindow.getTime()).size()
-        > 1) {
-      log.info("Skipping generating recommendations for user " + userEmail + " checked into place "
-          + placeId);
-
+    // Most repeated checkins of a user into the same place within the recommendation expiration
+    // time do not get here: their tasks have the same name, which the queue rejects. Those on
+    // either side of the boundary of an expiration period do, and are skipped here.
+    if (hasRecentCheckin(userEmail, placeId, checkinTime)) {
+      log.info("Skipping recommendations for user " + userEmail + " who recently checked into "
+          + "place " + placeId);
       return;
     }
 
@@ -141,6 +161,102 @@ public class RecommendationServlet extends HttpServlet {
     }
   }
 
+  /**
+   * @return whether the user checked into the place within the recommendation expiration time
+   *     before the given checkin, as told by {@link RecentVisits} or else by a datastore query.
+   */
+  private static boolean hasRecentCheckin(String userEmail, String placeId, long checkinTime) {
+    long expirationInMillis = RECOMMENDATION_EXPIRATION_IN_MINUTES * 60 * 1000L;
+    Boolean visited =
+        RecentVisits.hasVisitedBefore(userEmail, placeId, checkinTime, expirationInMillis);
+    if (visited != null) {
+      PlaceMetrics.add("recommendations.queries.avoided", 1);
+      return visited;
+    }
+
+    PlaceMetrics.add("recommendations.queries.fallback", 1);
+    // The query also returns the checkin itself, unless it has not been stored yet.
+    List<CheckIn> checkins = CheckInUtil.getCheckinsForUser(
+        userEmail, placeId, new Date(checkinTime - expirationInMillis));
+    int earlier = 0;
+    for (CheckIn checkin : checkins) {
+      if (checkin.getCheckinDate().getTime() < checkinTime) {
+        earlier++;
+      }
+    }
+    return earlier > 0;
+  }
+
+  /**
+   * Adds the tasks that generate recommendations for checkins, with as few queue calls as
+   * possible. Each task is named after the user, the place and the recommendation expiration
+   * period of its checkin, so that the queue rejects the tasks of repeated checkins.
+   */
+  static void addTasks(List<CheckIn> checkins) {
+    Map<String, TaskOptions> uniqueTasks = new LinkedHashMap<String, TaskOptions>();
+    for (CheckIn checkin : checkins) {
+      String taskName = getTaskName(
+          checkin.getUserEmail(), checkin.getPlaceId(), checkin.getCheckinDate());
+      uniqueTasks.put(taskName, withUrl("/tasks/recommendations")
+          .taskName(taskName)
+          .param("userEmail", checkin.getUserEmail())
+          .param("placeId", checkin.getPlaceId())
+          .param("checkinDate", Long.toString(checkin.getCheckinDate().getTime())));
+    }
+    long duplicates = checkins.size() - uniqueTasks.size();
+
+    Queue queue = QueueFactory.getQueue(QUEUE);
+    List<TaskOptions> taskList = new ArrayList<TaskOptions>(uniqueTasks.values());
+    for (int from = 0; from < taskList.size(); from += MAX_TASKS_PER_CALL) {
+      List<TaskOptions> batch =
+          taskList.subList(from, Math.min(taskList.size(), from + MAX_TASKS_PER_CALL));
+      try {
+        queue.add(batch);
+        PlaceMetrics.add("recommendations.tasks.added", batch.size());
+      } catch (TaskAlreadyExistsException e) {
+        // The other tasks of a batch are added, but the exception only tells about one.
+        if (batch.size() == 1) {
+          duplicates++;
+        } else {
+          PlaceMetrics.add("recommendations.tasks.batchesWithDuplicates", 1);
+        }
+        log.info("Skipping recommendations already scheduled: " + e.getMessage());
+      }
+    }
+    PlaceMetrics.add("recommendations.tasks.duplicates", duplicates);
+  }
+
+  /**
+   * @return whether recommendations generated now for a checkin made at the given date would
+   *     not have expired already.
+   */
+  static boolean isCurrent(Date checkinDate, Date now) {
+    return now.getTime() - checkinDate.getTime()
+        < RECOMMENDATION_EXPIRATION_IN_MINUTES * 60 * 1000L;
+  }
+
+  private static String getTaskName(String userEmail, String placeId, Date checkinDate) {
+    long period = checkinDate.getTime() / (RECOMMENDATION_EXPIRATION_IN_MINUTES * 60 * 1000L);
+    String placePart = TASK_NAME_PART.matcher(placeId).matches() ? placeId : hash(placeId);
+    return "recommendation-" + hash(userEmail) + "-" + placePart + "-" + period;
+  }
+
+  private static String hash(String value) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    byte[] hash = digest.digest(value.getBytes(Charset.forName("UTF-8")));
+    StringBuilder hex = new StringBuilder();
+    for (int i = 0; i < 8; i++) {
+      hex.append(Character.forDigit((hash[i] >> 4) & 0xf, 16))
+          .append(Character.forDigit(hash[i] & 0xf, 16));
+    }
+    return hex.toString();
+  }
+
   private static EntityManager getEntityManager() {
     return EMF.get().createEntityManager();
   }
@@ -0,0 +1,491 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.sample.mobileassistant;
+
+import com.google.appengine.api.datastore.GeoPt;
+import com.google.appengine.api.search.DeleteException;
+import com.google.appengine.api.search.Document;
+import com.google.appengine.api.search.Field;
+import com.google.appengine.api.search.FieldExpression;
+import com.google.appengine.api.search.GeoPoint;
+import com.google.appengine.api.search.Index;
+import com.google.appengine.api.search.OperationResult;
+import com.google.appengine.api.search.PutException;
+import com.google.appengine.api.search.Query;
+import com.google.appengine.api.search.QueryOptions;
+import com.google.appengine.api.search.Results;
+import com.google.appengine.api.search.ScoredDocument;
+import com.google.appengine.api.search.SortExpression;
+import com.google.appengine.api.search.SortOptions;
+import com.google.appengine.api.search.StatusCode;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * PlaceSearchBackend backed by a Search API index.
+ */
+class SearchApiPlaceSearchBackend implements PlaceSearchBackend {
+  private static final Logger log = Logger.getLogger(SearchApiPlaceSearchBackend.class.getName());
+  private static final String DISTANCE_EXPRESSION_NAME = "distance";
+  static final String CONTENT_HASH_FIELD_NAME = "content_hash";
+  private static final String PREFIXES_FIELD_NAME = "prefixes";
+  // Longer words are indexed under their prefixes of up to this length only.
+  private static final int MAX_PREFIX_LENGTH = 20;
+  // Part of the content hash, so that the documents built before a change of the fields are
+  // replaced by the next reconciliation.
+  private static final int DOCUMENT_FORMAT = 2;
+  // Starts the ids of documents of places whose ids are not valid document ids.
+  static final String ENCODED_ID_PREFIX = "~";
+  private static final int MAX_DOCUMENT_ID_LENGTH = 500;
+
+  // The maximum number of documents a single Search API query can return.
+  private static final int MAX_SEARCH_RESULTS = 1000;
+  private static final int PAGE_SLACK = 10;
+  // Counts of matching documents are exact up to this number.
+  private static final int MAX_NUMBER_FOUND_ACCURACY = 10000;
+
+  // The maximum number of documents a single put or delete call can take.
+  static final int MAX_DOCUMENTS_PER_CALL = 200;
+  private static final int MAX_ATTEMPTS = 4;
+  private static final long RETRY_DELAY_IN_MILLIS = 200;
+
+  /**
+   * @return the active version of the index.
+   * @see PlacesIndexVersions
+   */
+  static Index getIndex() {
+    return PlacesIndexVersions.getActiveIndex();
+  }
+
+  static Document buildDocument(
+      String placeId, String placeName, String placeAddress, GeoPt location) {
+    GeoPoint geoPoint = new GeoPoint(location.getLatitude(), location.getLongitude());
+
+    // The document id is derived from the place id alone, so that putting a place replaces its
+    // earlier version.
+    Document place = Document.newBuilder()
+        .setId(getDocumentId(placeId))
+        .addField(Field.newBuilder().setName("id").setText(placeId))
+        .addField(Field.newBuilder().setName("name").setText(placeName))
+        .addField(Field.newBuilder().setName("address").setText(placeAddress))
+        .addField(Field.newBuilder().setName("place_location").setGeoPoint(geoPoint))
+        .addField(Field.newBuilder().setName(PREFIXES_FIELD_NAME)
+            .setText(getPrefixes(placeName + " " + placeAddress)))
+        .addField(Field.newBuilder().setName(CONTENT_HASH_FIELD_NAME)
+            .setAtom(getContentHash(placeName, placeAddress, location)))
+        .build();
+
+    return place;
+  }
+
+  /**
+   * @return the id of the document of a place: the place id itself if the Search API accepts it
+   *     as a document id, or else {@link #ENCODED_ID_PREFIX} followed by the SHA-1 of the place
+   *     id in hexadecimal. Raw ids never start with the prefix, so the two kinds cannot collide.
+   */
+  static String getDocumentId(String placeId) {
+    if (isValidDocumentId(placeId) && !placeId.startsWith(ENCODED_ID_PREFIX)) {
+      return placeId;
+    }
+    return ENCODED_ID_PREFIX + toHex(sha1(placeId), 20);
+  }
+
+  /**
+   * @return whether a string follows the rules of the Search API for document ids: printable
+   *     ASCII without spaces, not starting with '!' and not both starting and ending with "__".
+   */
+  private static boolean isValidDocumentId(String id) {
+    if (id.isEmpty() || id.length() > MAX_DOCUMENT_ID_LENGTH || id.startsWith("!")
+        || (id.startsWith("__") && id.endsWith("__"))) {
+      return false;
+    }
+    for (int i = 0; i < id.length(); i++) {
+      char c = id.charAt(i);
+      if (c <= ' ' || c > '~') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the prefixes of the words of a text, separated by spaces, for the Search API to match
+   *     words that are still being typed as whole tokens.
+   */
+  private static String getPrefixes(String text) {
+    Set<String> prefixes = new LinkedHashSet<String>();
+    for (String word : PlaceTextIndex.tokenize(text)) {
+      for (int length = 1; length <= Math.min(word.length(), MAX_PREFIX_LENGTH); length++) {
+        prefixes.add(word.substring(0, length));
+      }
+    }
+    StringBuilder result = new StringBuilder();
+    for (String prefix : prefixes) {
+      if (result.length() > 0) {
+        result.append(' ');
+      }
+      result.append(prefix);
+    }
+    return result.toString();
+  }
+
+  /**
+   * @return a hash of the indexed content of a place, which tells whether its document is up
+   *     to date.
+   */
+  static String getContentHash(String placeName, String placeAddress, GeoPt location) {
+    return toHex(sha1(DOCUMENT_FORMAT + "\n" + placeName + "\n" + placeAddress + "\n"
+        + location.getLatitude() + "," + location.getLongitude()), 8);
+  }
+
+  private static byte[] sha1(String text) {
+    try {
+      return MessageDigest.getInstance("SHA-1").digest(text.getBytes(Charset.forName("UTF-8")));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @return the first bytes of an array in hexadecimal.
+   */
+  private static String toHex(byte[] bytes, int count) {
+    StringBuilder hex = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      hex.append(Character.forDigit((bytes[i] >> 4) & 0xf, 16))
+          .append(Character.forDigit(bytes[i] & 0xf, 16));
+    }
+    return hex.toString();
+  }
+
+  @Override
+  public List<PlaceInfo> getPlaces(GeoPt location, long distanceInMeters, int resultCount) {
+    return search(null, location, distanceInMeters, -1, resultCount);
+  }
+
+  @Override
+  public long countPlaces(GeoPt location, long distanceInMeters) {
+    String query = "distance(place_location, geopoint(" + location.getLatitude() + ", "
+        + location.getLongitude() + ")) < " + distanceInMeters;
+    QueryOptions.Builder options = QueryOptions.newBuilder()
+        .setLimit(1)
+        .setReturningIdsOnly(true)
+        .setNumberFoundAccuracy(MAX_NUMBER_FOUND_ACCURACY);
+    return getIndex().search(Query.newBuilder().setOptions(options).build(query))
+        .getNumberFound();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>The Search API matches whole words rather than prefixes, so each document holds the
+   * prefixes of its words as words of their own, and every query word is looked up among them.
+   * Query words longer than {@link #MAX_PREFIX_LENGTH} characters match on their beginning.
+   */
+  @Override
+  public List<PlaceInfo> searchPlaces(
+      String text, GeoPt location, long distanceInMeters, int resultCount) {
+    StringBuilder textQuery = new StringBuilder();
+    for (String word : PlaceTextIndex.tokenize(text)) {
+      if (word.length() > MAX_PREFIX_LENGTH) {
+        word = word.substring(0, MAX_PREFIX_LENGTH);
+      }
+      textQuery.append(" AND ").append(PREFIXES_FIELD_NAME).append(":\"").append(word)
+          .append("\"");
+    }
+    if (textQuery.length() == 0) {
+      return new ArrayList<PlaceInfo>();
+    }
+    return search(textQuery.toString(), location, distanceInMeters, -1, resultCount);
+  }
+
+  @Override
+  public List<PlaceInfo> getPlacesAfter(GeoPt location, long distanceInMeters,
+      double afterDistanceInKm, String afterPlaceId, int resultCount) {
+    // Places at exactly the cursor distance are skipped here rather than in the query, so ask
+    // for a few more documents than the page needs, and for more again in the rare case that
+    // such places fill a whole response.
+    int limit = Math.min(resultCount + PAGE_SLACK, MAX_SEARCH_RESULTS);
+    while (true) {
+      List<PlaceInfo> found = search(null, location, distanceInMeters, afterDistanceInKm, limit);
+
+      List<PlaceInfo> page = new ArrayList<PlaceInfo>();
+      for (PlaceInfo place : found) {
+        if (isAfter(place, afterDistanceInKm, afterPlaceId)) {
+          page.add(place);
+        }
+      }
+      Collections.sort(page, new Comparator<PlaceInfo>() {
+        @Override
+        public int compare(PlaceInfo a, PlaceInfo b) {
+          int result = Double.compare(a.getDistanceInKilometers(), b.getDistanceInKilometers());
+          return result != 0 ? result : a.getPlaceId().compareTo(b.getPlaceId());
+        }
+      });
+
+      if (page.size() >= resultCount || found.size() < limit || limit == MAX_SEARCH_RESULTS) {
+        return page.size() > resultCount ? new ArrayList<PlaceInfo>(page.subList(0, resultCount))
+            : page;
+      }
+      limit = Math.min(limit * 2, MAX_SEARCH_RESULTS);
+    }
+  }
+
+  private static boolean isAfter(PlaceInfo place, double afterDistanceInKm, String afterPlaceId) {
+    double distanceInKm = place.getDistanceInKilometers();
+    if (distanceInKm != afterDistanceInKm) {
+      return distanceInKm > afterDistanceInKm;
+    }
+    return afterPlaceId == null || place.getPlaceId().compareTo(afterPlaceId) > 0;
+  }
+
+  /**
+   * Queries the index for places within a given distance from a location, ordered by distance
+   * and then place id.
+   *
+   * @param textQuery if not null, a query expression joined to the distance query.
+   * @param minDistanceInKm if not negative, places closer than this (less a meter, to allow for
+   *     rounding) are not returned.
+   */
+  private List<PlaceInfo> search(String textQuery, GeoPt location, long distanceInMeters,
+      double minDistanceInKm, int resultCount) {
+    String geoPoint = "geopoint(" + location.getLatitude() + ", " + location.getLongitude() + ")";
+
+    String query = "distance(place_location, " + geoPoint + ") < " + distanceInMeters;
+    String locExpr = "distance(place_location, " + geoPoint + ")";
+    if (minDistanceInKm >= 0) {
+      query += " AND " + locExpr + " >= "
+          + Math.max(0, (long) Math.floor(minDistanceInKm * 1000) - 1);
+    }
+    if (textQuery != null) {
+      query += textQuery;
+    }
+
+    SortExpression sortExpr = SortExpression.newBuilder()
+        .setExpression(locExpr)
+        .setDirection(SortExpression.SortDirection.ASCENDING)
+        .setDefaultValueNumeric(distanceInMeters + 1)
+        .build();
+    SortExpression idSortExpr = SortExpression.newBuilder()
+        .setExpression("id")
+        .setDirection(SortExpression.SortDirection.ASCENDING)
+        .setDefaultValue("")
+        .build();
+
+    // Let the search service rank and return only as many documents as are needed, with just
+    // the fields used below and the distance it has already computed for sorting.
+    QueryOptions.Builder options = QueryOptions.newBuilder()
+        .setLimit(Math.min(resultCount, MAX_SEARCH_RESULTS))
+        .setFieldsToReturn("id", "name", "address", "place_location")
+        .addExpressionToReturn(FieldExpression.newBuilder()
+            .setName(DISTANCE_EXPRESSION_NAME).setExpression(locExpr))
+        .setSortOptions(SortOptions.newBuilder()
+            .addSortExpression(sortExpr).addSortExpression(idSortExpr));
+    Query searchQuery = Query.newBuilder().setOptions(options).build(query);
+    Results<ScoredDocument> results = getIndex().search(searchQuery);
+
+    List<PlaceInfo> places = new ArrayList<PlaceInfo>();
+
+    for (ScoredDocument document : results) {
+      if (places.size() >= resultCount) {
+        break;
+      }
+
+      GeoPoint p = document.getOnlyField("place_location").getGeoPoint();
+
+      PlaceInfo place = new PlaceInfo();
+      place.setplaceID(document.getOnlyField("id").getText());
+      place.setName(document.getOnlyField("name").getText());
+      place.setAddress(document.getOnlyField("address").getText());
+
+      place.setLocation(new GeoPt((float) p.getLatitude(), (float) p.getLongitude()));
+
+      Double distanceInMetersFound = getReturnedDistance(document);
+      if (distanceInMetersFound != null) {
+        place.setDistanceInKilometers(distanceInMetersFound / 1000);
+      } else {
+        place.setDistanceInKilometers(GeoDistance.haversineKm(p.getLatitude(), p.getLongitude(),
+            location.getLatitude(), location.getLongitude()));
+      }
+
+      places.add(place);
+    }
+
+    return places;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>The places are put into the active version of the index and into the version being
+   * rebuilt, if any. Documents are put in batches of the largest size the Search API accepts.
+   * Documents of a batch that failed with a transient error are retried on their own a few
+   * times; documents rejected for other reasons are skipped.
+   *
+   * @throws PutException if a document could still not be added because of a transient error.
+   */
+  @Override
+  public void putPlaces(List<Place> places) {
+    for (Index index : PlacesIndexVersions.getWriteIndexes()) {
+      putPlaces(index, places);
+    }
+  }
+
+  @Override
+  public long beginRebuild() {
+    return PlacesIndexVersions.beginRebuild();
+  }
+
+  @Override
+  public void putRebuiltPlaces(long version, List<Place> places) {
+    putPlaces(PlacesIndexVersions.getIndex(version), places);
+  }
+
+  @Override
+  public void finishRebuild(long version) {
+    PlacesIndexVersions.finishRebuild(version);
+  }
+
+  private static void putPlaces(Index index, List<Place> places) {
+    long start = System.currentTimeMillis();
+
+    List<Document> batch = new ArrayList<Document>(MAX_DOCUMENTS_PER_CALL);
+    for (Place place : places) {
+      batch.add(buildDocument(
+          place.getPlaceId(), place.getName(), place.getAddress(), place.getLocation()));
+      if (batch.size() == MAX_DOCUMENTS_PER_CALL) {
+        putBatch(index, batch);
+        batch.clear();
+      }
+    }
+    if (!batch.isEmpty()) {
+      putBatch(index, batch);
+    }
+
+    long millis = System.currentTimeMillis() - start;
+    PlaceMetrics.add("index.put.documents", places.size());
+    PlaceMetrics.add("index.put.millis", millis);
+    log.info("Put " + places.size() + " documents into " + index.getName() + " in " + millis
+        + " ms (" + places.size() * 1000L / Math.max(1, millis) + " documents/s)");
+  }
+
+  private static void putBatch(Index index, List<Document> documents) {
+    for (int attempt = 1; ; attempt++) {
+      try {
+        index.put(documents);
+        return;
+      } catch (PutException e) {
+        List<Document> retry = new ArrayList<Document>();
+        List<OperationResult> results = e.getResults();
+        for (int i = 0; i < documents.size(); i++) {
+          OperationResult result = i < results.size() ? results.get(i) : e.getOperationResult();
+          if (StatusCode.OK.equals(result.getCode())) {
+            continue;
+          }
+          if (StatusCode.TRANSIENT_ERROR.equals(result.getCode())) {
+            retry.add(documents.get(i));
+          } else {
+            log.warning("Skipping place " + documents.get(i).getOnlyField("id").getText()
+                + ": " + result.getMessage());
+          }
+        }
+        if (retry.isEmpty()) {
+          return;
+        }
+        if (attempt == MAX_ATTEMPTS) {
+          throw e;
+        }
+        PlaceMetrics.add("index.put.retried", retry.size());
+        backOff(attempt);
+        documents = retry;
+      }
+    }
+  }
+
+  @Override
+  public void removePlaces(List<String> placeIds) {
+    List<String> documentIds = new ArrayList<String>(placeIds.size());
+    for (String placeId : placeIds) {
+      documentIds.add(getDocumentId(placeId));
+    }
+    removeDocuments(documentIds);
+  }
+
+  /**
+   * Deletes documents by their document ids from the active version of the index and from the
+   * version being rebuilt, if any.
+   */
+  void removeDocuments(List<String> documentIds) {
+    for (Index index : PlacesIndexVersions.getWriteIndexes()) {
+      for (int from = 0; from < documentIds.size(); from += MAX_DOCUMENTS_PER_CALL) {
+        deleteBatch(index, new ArrayList<String>(documentIds.subList(
+            from, Math.min(documentIds.size(), from + MAX_DOCUMENTS_PER_CALL))));
+      }
+    }
+  }
+
+  /**
+   * Deletes documents with a single call, retrying those that failed with a transient error.
+   */
+  static void deleteBatch(Index index, List<String> ids) {
+    for (int attempt = 1; ; attempt++) {
+      try {
+        index.delete(ids);
+        return;
+      } catch (DeleteException e) {
+        List<String> retry = new ArrayList<String>();
+        List<OperationResult> results = e.getResults();
+        for (int i = 0; i < ids.size(); i++) {
+          OperationResult result = i < results.size() ? results.get(i) : e.getOperationResult();
+          if (StatusCode.TRANSIENT_ERROR.equals(result.getCode())) {
+            retry.add(ids.get(i));
+          }
+        }
+        if (retry.isEmpty() || attempt == MAX_ATTEMPTS) {
+          throw e;
+        }
+        backOff(attempt);
+        ids = retry;
+      }
+    }
+  }
+
+  private static void backOff(int attempt) {
+    try {
+      Thread.sleep(RETRY_DELAY_IN_MILLIS << (attempt - 1));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static Double getReturnedDistance(ScoredDocument document) {
+    for (Field expression : document.getExpressions()) {
+      if (DISTANCE_EXPRESSION_NAME.equals(expression.getName())) {
+        return expression.getNumber();
+      }
+    }
+    return null;
+  }
+}